@@ -7,19 +7,17 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.design.widget.BottomSheetBehavior;
-import android.support.v4.content.FileProvider;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageButton;
 
 import com.divshark.bottomsheethelper.BottomSheetItem;
+import com.divshark.bottomsheethelper.FileType;
 import com.divshark.bottomsheethelper.ShareActivity;
+import com.divshark.bottomsheethelper.ShareFileRequest;
 import com.divshark.bottomsheethelper.SheetHelper;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Date;
 
 /**
  * Sample Activity to show the use of the {@link ShareActivity} base class
@@ -46,6 +44,8 @@ public class MainActivity extends ShareActivity {
                 .filePrefix("Image") /* configure a file prefix */
                 .provider(".sampleprovider") /* configure the file provider name */
                 .fileExtension(".png") /* configure the file extension */
+                .fileType(FileType.BITMAP) /* share a Bitmap, encoded as the file extension says */
+                .maxDimension(2048) /* scale the image down before it is encoded */
                 .columnCount(2) /* configure the column count for the grid adapter */
                 .callback(ShareSheetBehaviorCallback) /* specify a BottomSheetBehavior.BottomSheetCallback */
                 .dateFormat("_M-dd-yyyy_hhmmss") /* sets a Date format for saving the file */
@@ -54,6 +54,11 @@ public class MainActivity extends ShareActivity {
                 .extraText("Look at this amazing photo I can share!") /* adds some extra text to share*/
                 .mimeType("text/plain") /* sets the mime type of the file to share */
                 .title("Bottom Sheet Sample") /* set the title */
+                .streaming(true) /* show targets in batches as they resolve */
+                .speculativeShareFile(true) /* prepare the file while the sheet opens */
+                .inflateSheetWhenIdle(true) /* inflate the sheet after the first frame instead of on first show */
+                .prewarmItems(true) /* inflate the grid cells off the main thread before the first show */
+                .searchable(true) /* filter the apps from a search field as the user types */
                 .create();
 
         // Tell the parent Activity here is my SheetHelper
@@ -84,34 +89,15 @@ public class MainActivity extends ShareActivity {
      */
     @Override
     protected Uri createShareFile() {
-        Uri contentUri;
-        final File myDir = new File(getFilesDir(), mSheetHelper.getDirectory());
-        boolean directoryCreated = myDir.mkdirs();
 
-        if(directoryCreated || myDir.exists()) {
-            final String fileName = mSheetHelper.getFilePrefix() + mSheetHelper.getDateFormat().format(new Date()) + mSheetHelper.getFileExtension();
-            final File file = new File(myDir, fileName);
-            FileOutputStream fileOutputStream;
+        try {
+            // Sharing the same bitmap again reuses the file written the first time
+            return mSheetHelper.createShareFile(bitmap);
 
-            try {
+        } catch (IOException ex) {
 
-                boolean fileCreated = file.createNewFile();
-
-                if(fileCreated) {
-                    fileOutputStream = new FileOutputStream(file);
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, fileOutputStream);
-                    fileOutputStream.close();
-
-                    contentUri = FileProvider.getUriForFile(MainActivity.this, getPackageName() + mSheetHelper.getFileProvider(), file);
-
-                    return contentUri;
-                }
-
-            } catch (IOException ex) {
-
-                if(Log.isLoggable(TAG, Log.ERROR)){
-                    Log.e(TAG, "Failed to create the file", ex);
-                }
+            if(Log.isLoggable(TAG, Log.ERROR)){
+                Log.e(TAG, "Failed to create the file", ex);
             }
         }
 
@@ -119,6 +105,25 @@ public class MainActivity extends ShareActivity {
         return null;
     }
 
+    /**
+     * The file comes from the SheetHelper's store in internal storage, no permission is needed to read it
+     * @return - false
+     */
+    @Override
+    protected boolean requiresStoragePermission() {
+        return false;
+    }
+
+    /**
+     * Encodes the bitmap on the background thread instead of the main thread
+     * @param request - the request the file is produced for
+     * @return - a Uri pointing to the file to share
+     */
+    @Override
+    protected Uri createShareFile(ShareFileRequest request) {
+        return createShareFile();
+    }
+
     /**
      * Override this method in order to explicitly handle your Intent
      * @param bottomSheetItem - the bottom sheet item to share to
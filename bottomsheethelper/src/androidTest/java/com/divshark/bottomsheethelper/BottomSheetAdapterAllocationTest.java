@@ -0,0 +1,200 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.test.InstrumentationTestCase;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts the objects the main thread allocates while rows are rebound with their icons in memory
+ * and while the grid reports scroll events, both happen every frame of a fling.
+ */
+public class BottomSheetAdapterAllocationTest extends InstrumentationTestCase {
+
+    private static final int COLUMNS = 4;
+
+    /**
+     * Few enough targets for all of their icons to stay in memory
+     */
+    private static final int MAX_TARGETS = 24;
+
+    private static final int EVENTS = 1000;
+
+    /**
+     * Leaves room for the counting itself, one object per event would be a thousand
+     */
+    private static final int MAX_ALLOCATIONS = 10;
+
+    private static final int WIDTH_PX = 1080;
+
+    private static final int HEIGHT_PX = 1920;
+
+    private SheetContext context;
+
+    private List<BottomSheetItem> items;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        context = new SheetContext(getInstrumentation().getTargetContext());
+        items = launcherTargets(context);
+
+        // Binding allocates nothing only once the icons are in memory
+        PackageManager packageManager = context.getPackageManager();
+        TargetArtifactCache artifactCache = TargetArtifactCache.getInstance(context);
+        for(BottomSheetItem bottomSheetItem : items){
+            Bitmap icon = artifactCache.getIcon(packageManager, bottomSheetItem.getComponent());
+            artifactCache.releaseIcon(icon);
+        }
+    }
+
+    public void testFlatCellsRebindWithoutAllocating() throws Exception {
+        assertRebindsWithoutAllocating(true);
+    }
+
+    public void testLayoutCellsRebindWithoutAllocating() throws Exception {
+        assertRebindsWithoutAllocating(false);
+    }
+
+    public void testScrollEventsDoNotAllocate() throws Exception {
+
+        final int[] allocations = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+
+                RecyclerView recyclerView = layOut(false);
+                View shadow = new View(context);
+                ShadowScrollListener listener = new ShadowScrollListener(shadow);
+
+                // Away from the top the first event shows the shadow, the rest only scroll
+                recyclerView.scrollToPosition(items.size() - 1);
+                layOut(recyclerView);
+                listener.onScrolled(recyclerView, 0, 12);
+                assertEquals(View.VISIBLE, shadow.getVisibility());
+
+                scroll(recyclerView, listener);
+
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+                scroll(recyclerView, listener);
+                allocations[0] = Debug.getThreadAllocCount();
+                Debug.stopAllocCounting();
+            }
+        });
+
+        assertTrue("allocated " + allocations[0] + " objects", allocations[0] < MAX_ALLOCATIONS);
+    }
+
+    private void assertRebindsWithoutAllocating(final boolean flatCells) throws Exception {
+
+        final int[] allocations = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+
+                RecyclerView recyclerView = layOut(flatCells);
+                BottomSheetAdapter adapter = (BottomSheetAdapter) recyclerView.getAdapter();
+                BottomSheetAdapter.ViewHolder holder =
+                        (BottomSheetAdapter.ViewHolder) recyclerView.findViewHolderForAdapterPosition(0);
+
+                // A layout cell's TextView allocates for a new title, so it rebinds its own item
+                int positions = flatCells ? Math.min(items.size(), recyclerView.getChildCount()) : 1;
+
+                // The first round lays out the labels the later rounds look up
+                rebind(adapter, holder, positions);
+
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+                rebind(adapter, holder, positions);
+                allocations[0] = Debug.getThreadAllocCount();
+                Debug.stopAllocCounting();
+            }
+        });
+
+        assertTrue("allocated " + allocations[0] + " objects", allocations[0] < MAX_ALLOCATIONS);
+    }
+
+    private static void rebind(BottomSheetAdapter adapter, BottomSheetAdapter.ViewHolder holder, int positions){
+        for(int i = 0; i < EVENTS; i++){
+            adapter.onBindViewHolder(holder, i % positions);
+        }
+    }
+
+    private static void scroll(RecyclerView recyclerView, ShadowScrollListener listener){
+        for(int i = 0; i < EVENTS; i++){
+            listener.onScrolled(recyclerView, 0, (i & 1) == 0 ? 12 : -3);
+        }
+    }
+
+    /**
+     * @return - a grid of the targets measured and laid out as on a phone
+     */
+    private RecyclerView layOut(boolean flatCells){
+
+        BottomSheetAdapter adapter = new BottomSheetAdapter(context, items);
+        adapter.setFlatCells(flatCells);
+
+        RecyclerView recyclerView = new RecyclerView(context);
+        recyclerView.setLayoutManager(new GridLayoutManager(context, COLUMNS));
+        recyclerView.setAdapter(adapter);
+        layOut(recyclerView);
+        return recyclerView;
+    }
+
+    private static void layOut(RecyclerView recyclerView){
+        recyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH_PX, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT_PX, View.MeasureSpec.EXACTLY));
+        recyclerView.layout(0, 0, WIDTH_PX, HEIGHT_PX);
+    }
+
+    /**
+     * @return - the launcher activities of the device, every device has a few with real icons
+     */
+    private static List<BottomSheetItem> launcherTargets(Context context){
+
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        PackageManager packageManager = context.getPackageManager();
+
+        List<BottomSheetItem> items = new ArrayList<>();
+        for(ResolveInfo resolveInfo : packageManager.queryIntentActivities(intent, 0)){
+
+            if(items.size() == MAX_TARGETS){
+                break;
+            }
+            BottomSheetItem bottomSheetItem = new BottomSheetItem();
+            bottomSheetItem.title = String.valueOf(resolveInfo.loadLabel(packageManager));
+            bottomSheetItem.packageName = resolveInfo.activityInfo.packageName;
+            bottomSheetItem.className = resolveInfo.activityInfo.name;
+            items.add(bottomSheetItem);
+        }
+
+        assertTrue("needs launcher activities to bind", items.size() > 1);
+        return items;
+    }
+
+    /**
+     * An AppCompat themed Context receiving the adapter's clicks, as the Activity does
+     */
+    private static final class SheetContext extends ContextThemeWrapper implements BottomSheetAdapter.Callback {
+
+        SheetContext(Context base){
+            super(base, R.style.Theme_AppCompat_Light);
+        }
+
+        @Override
+        public void onShareTo(BottomSheetItem bottomSheetItem) {}
+    }
+}
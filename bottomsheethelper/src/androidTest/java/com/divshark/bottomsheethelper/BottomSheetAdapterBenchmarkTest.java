@@ -0,0 +1,136 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times binding and laying out a screenful of the sheet's grid on the main thread, with the
+ * layout based cells and with flat cells. The median time per pass is logged under this class's
+ * tag, run it on a device with {@code ./gradlew :bottomsheethelper:connectedAndroidTest}.
+ */
+public class BottomSheetAdapterBenchmarkTest extends InstrumentationTestCase {
+
+    private static final String TAG = BottomSheetAdapterBenchmarkTest.class.getSimpleName();
+
+    private static final int ITEMS = 60;
+
+    private static final int COLUMNS = 4;
+
+    private static final int WARM_UP_PASSES = 10;
+
+    private static final int PASSES = 50;
+
+    private static final int WIDTH_PX = 1080;
+
+    private static final int HEIGHT_PX = 1920;
+
+    public void testLayoutCellsBindAndLayout() throws Exception {
+        report("layout cells", measure(false));
+    }
+
+    public void testFlatCellsBindAndLayout() throws Exception {
+        report("flat cells", measure(true));
+    }
+
+    /**
+     * @return - the nanoseconds of each timed pass
+     */
+    private long[] measure(final boolean flatCells) throws Exception {
+
+        final SheetContext context = new SheetContext(getInstrumentation().getTargetContext());
+        final RecyclerView[] recyclerView = new RecyclerView[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                BottomSheetAdapter adapter = new BottomSheetAdapter(context, items());
+                adapter.setFlatCells(flatCells);
+
+                recyclerView[0] = new RecyclerView(context);
+                recyclerView[0].setLayoutManager(new GridLayoutManager(context, COLUMNS));
+                recyclerView[0].setAdapter(adapter);
+
+                // The first pass reports the cell width to the label cache
+                pass(recyclerView[0]);
+            }
+        });
+
+        // Let the label layouts and the icon loads started by the first pass settle
+        Thread.sleep(500);
+        getInstrumentation().waitForIdleSync();
+
+        final long[] times = new long[PASSES];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0; i < WARM_UP_PASSES; i++){
+                    pass(recyclerView[0]);
+                }
+                for(int i = 0; i < PASSES; i++){
+                    long start = System.nanoTime();
+                    pass(recyclerView[0]);
+                    times[i] = System.nanoTime() - start;
+                }
+            }
+        });
+        return times;
+    }
+
+    /**
+     * Rebinds every visible cell and lays the grid out again
+     */
+    private static void pass(RecyclerView recyclerView){
+
+        recyclerView.getAdapter().notifyDataSetChanged();
+        recyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH_PX, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT_PX, View.MeasureSpec.EXACTLY));
+        recyclerView.layout(0, 0, WIDTH_PX, HEIGHT_PX);
+    }
+
+    private static void report(String cells, long[] times){
+
+        assertTrue(times.length > 0);
+
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        Log.i(TAG, cells + ": median " + sorted[sorted.length / 2] / 1000 + "us, p90 "
+                + sorted[sorted.length * 9 / 10] / 1000 + "us per bind and layout pass");
+    }
+
+    /**
+     * Targets with labels of one to a few words, their icons are never found and show the placeholder
+     */
+    private static List<BottomSheetItem> items(){
+
+        List<BottomSheetItem> items = new ArrayList<>(ITEMS);
+        for(int i = 0; i < ITEMS; i++){
+            BottomSheetItem bottomSheetItem = new BottomSheetItem();
+            bottomSheetItem.title = i % 3 == 0 ? "Target " + i : "Share target number " + i;
+            bottomSheetItem.packageName = "com.divshark.benchmark.target" + i;
+            bottomSheetItem.className = "com.divshark.benchmark.ShareActivity";
+            items.add(bottomSheetItem);
+        }
+        return items;
+    }
+
+    /**
+     * An AppCompat themed Context receiving the adapter's clicks, as the Activity does
+     */
+    private static final class SheetContext extends ContextThemeWrapper implements BottomSheetAdapter.Callback {
+
+        SheetContext(Context base){
+            super(base, R.style.Theme_AppCompat_Light);
+        }
+
+        @Override
+        public void onShareTo(BottomSheetItem bottomSheetItem) {}
+    }
+}
@@ -0,0 +1,191 @@
+package com.divshark.bottomsheethelper;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Encodes {@link FileType#BITMAP} payloads as PNG, JPEG or WEBP, scaling a Bitmap down to a
+ * maximum dimension before it is encoded
+ */
+public final class BitmapEncoder implements ShareEncoder<Bitmap> {
+
+    /**
+     * Pixel hashes by Bitmap, valid while the Bitmap's generation id is unchanged
+     */
+    private static final Map<Bitmap, String> sPixelHashes = new WeakHashMap<>();
+
+    private final Bitmap.CompressFormat format;
+
+    private final int quality;
+
+    private final int maxDimension;
+
+    /**
+     * @param format - the format to encode with
+     * @param quality - the quality from 0 to 100, ignored by PNG
+     * @param maxDimension - the longest side of the encoded image in pixels, 0 to keep the size
+     */
+    public BitmapEncoder(Bitmap.CompressFormat format, int quality, int maxDimension){
+        this.format = format;
+        this.quality = quality;
+        this.maxDimension = maxDimension;
+    }
+
+    /**
+     * Picks the format from an image MIME type, falling back to the file extension and then PNG
+     * @param mimeType - the MIME type of the share, may be null
+     * @param fileExtension - the extension of the share file, may be null
+     * @param quality - the quality from 0 to 100, ignored by PNG
+     * @param maxDimension - the longest side of the encoded image in pixels, 0 to keep the size
+     * @return - the BitmapEncoder
+     */
+    public static BitmapEncoder forType(String mimeType, String fileExtension, int quality, int maxDimension){
+
+        Bitmap.CompressFormat format = null;
+        if(mimeType != null && mimeType.startsWith("image/")){
+            format = formatOf(mimeType.substring("image/".length()));
+        }
+        if(format == null && fileExtension != null){
+            format = formatOf(fileExtension.substring(fileExtension.lastIndexOf('.') + 1));
+        }
+        return new BitmapEncoder(format != null ? format : Bitmap.CompressFormat.PNG, quality, maxDimension);
+    }
+
+    private static Bitmap.CompressFormat formatOf(String subtype){
+
+        switch (subtype.toLowerCase(Locale.US)){
+            case "png":
+                return Bitmap.CompressFormat.PNG;
+            case "jpg":
+            case "jpeg":
+                return Bitmap.CompressFormat.JPEG;
+            case "webp":
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                return null;
+        }
+    }
+
+    public Bitmap.CompressFormat getFormat(){return format;}
+
+    public int getQuality(){return quality;}
+
+    public int getMaxDimension(){return maxDimension;}
+
+    /**
+     * @return - the extension of the files written in {@link #getFormat()}
+     */
+    public String getFileExtension(){
+        switch (format){
+            case JPEG:
+                return ".jpg";
+            case WEBP:
+                return ".webp";
+            default:
+                return ".png";
+        }
+    }
+
+    @Override
+    public FileType getFileType() {
+        return FileType.BITMAP;
+    }
+
+    @Override
+    public String getContentKey(Bitmap bitmap) {
+        return pixelHash(bitmap) + ':' + format + ':' + quality + ':' + maxDimension;
+    }
+
+    @Override
+    public long estimateMemory(Bitmap bitmap) {
+
+        // A scaled copy plus the compressed bytes, at most the size of the pixels again
+        long pixels = bitmap.getByteCount();
+        int longest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if(maxDimension > 0 && longest > maxDimension){
+            float scale = (float) maxDimension / longest;
+            return (long) (pixels * scale * scale * 2);
+        }
+        return pixels;
+    }
+
+    @Override
+    public void encode(Bitmap bitmap, OutputStream out) throws IOException {
+
+        Bitmap scaled = scale(bitmap);
+        try {
+            if(!scaled.compress(format, quality, out)){
+                throw new IOException("Unable to encode the bitmap as " + format);
+            }
+        } finally {
+            if(scaled != bitmap){
+                scaled.recycle();
+            }
+        }
+    }
+
+    /**
+     * @param bitmap - the Bitmap to share
+     * @return - the Bitmap itself if it fits the max dimension, otherwise a scaled down copy
+     */
+    private Bitmap scale(Bitmap bitmap){
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int longest = Math.max(width, height);
+        if(maxDimension <= 0 || longest <= maxDimension){
+            return bitmap;
+        }
+
+        float scale = (float) maxDimension / longest;
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * Hashes the pixels of a Bitmap a row at a time, remembering the hash for the Bitmap
+     * until its pixels change
+     * @param bitmap - the Bitmap
+     * @return - the hex hash of the dimensions, config and pixels
+     */
+    private static String pixelHash(Bitmap bitmap){
+
+        String generation = Integer.toString(bitmap.getGenerationId());
+        synchronized (sPixelHashes){
+            String cached = sPixelHashes.get(bitmap);
+            if(cached != null && cached.startsWith(generation + '/')){
+                return cached.substring(generation.length() + 1);
+            }
+        }
+
+        MessageDigest digest = Digests.newSha1();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        digest.update(ByteBuffer.allocate(8).putInt(width).putInt(height).array());
+        digest.update(String.valueOf(bitmap.getConfig()).getBytes(Digests.UTF_8));
+
+        ByteBuffer row = ByteBuffer.allocate(width * 4);
+        int[] pixels = new int[width];
+
+        for(int y = 0; y < height; y++){
+            bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
+            row.clear();
+            row.asIntBuffer().put(pixels);
+            digest.update(row.array(), 0, width * 4);
+        }
+
+        String hash = Digests.toHex(digest.digest());
+        synchronized (sPixelHashes){
+            sPixelHashes.put(bitmap, generation + '/' + hash);
+        }
+        return hash;
+    }
+}
@@ -1,6 +1,9 @@
 package com.divshark.bottomsheethelper;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.v4.view.AsyncLayoutInflater;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.AppCompatTextView;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -10,7 +13,10 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.RelativeLayout;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * The Adapter for the bottom sheet items
@@ -21,10 +27,43 @@ public class BottomSheetAdapter  extends RecyclerView.Adapter<BottomSheetAdapter
 
     private static final String TAG = BottomSheetAdapter.class.getSimpleName();
 
+    /**
+     * Most holders kept in a sheet's pool, a screenful of the largest grid
+     */
+    private static final int MAX_POOLED_HOLDERS = 32;
+
+    /**
+     * Cells inflated from bottom_sheet_item.xml
+     */
+    private static final int VIEW_TYPE_LAYOUT = 0;
+
+    /**
+     * Cells drawn by a single {@link ShareTargetCell}
+     */
+    private static final int VIEW_TYPE_FLAT = 1;
+
     private Context mContext;
     private List<BottomSheetItem> mBottomSheetItems;
     private Callback mCallback;
     private int mItemTextColor;
+    private IconLoader mIconLoader;
+    private Executor mBackgroundExecutor;
+    private Executor mMainExecutor;
+
+    /**
+     * Item views inflated ahead of time, taken by {@link #onCreateViewHolder(ViewGroup, int)} before inflating
+     */
+    private final ArrayDeque<View> mPrewarmedViews = new ArrayDeque<>();
+
+    /**
+     * Precomputed label layouts, only used with flat cells
+     */
+    private LabelLayoutCache mLabels;
+
+    /**
+     * Incremented for every snapshot handed in, a diff is only applied if it is still the latest
+     */
+    private int mGeneration;
 
     public interface Callback{
 
@@ -32,69 +71,336 @@ public class BottomSheetAdapter  extends RecyclerView.Adapter<BottomSheetAdapter
     }
 
     public BottomSheetAdapter(Context context, List<BottomSheetItem> bottomSheetItems){
+        // Icons load on their own pool, never behind a share file being encoded
+        this(context, bottomSheetItems, SheetExecutors.background(), SheetExecutors.icons(), SheetExecutors.mainThread());
+    }
+
+    /**
+     * @param context - the Context, must implement {@link Callback}
+     * @param bottomSheetItems - the initial snapshot
+     * @param backgroundExecutor - the Executor for diffing and loading icons
+     * @param mainExecutor - an Executor running on the main thread
+     */
+    public BottomSheetAdapter(Context context, List<BottomSheetItem> bottomSheetItems, Executor backgroundExecutor, Executor mainExecutor){
+        this(context, bottomSheetItems, backgroundExecutor, backgroundExecutor, mainExecutor);
+    }
+
+    /**
+     * @param context - the Context, must implement {@link Callback}
+     * @param bottomSheetItems - the initial snapshot
+     * @param backgroundExecutor - the Executor for diffing
+     * @param iconExecutor - the Executor for loading icons
+     * @param mainExecutor - an Executor running on the main thread
+     */
+    BottomSheetAdapter(Context context, List<BottomSheetItem> bottomSheetItems, Executor backgroundExecutor,
+                       Executor iconExecutor, Executor mainExecutor){
         this.mContext = context;
-        this.mBottomSheetItems = bottomSheetItems;
+        this.mBottomSheetItems = bottomSheetItems != null ? bottomSheetItems : Collections.<BottomSheetItem>emptyList();
+        this.mBackgroundExecutor = backgroundExecutor;
+        this.mMainExecutor = mainExecutor;
 
         mCallback = (Callback) mContext;
+        mIconLoader = new IconLoader(context, iconExecutor, mainExecutor);
+
+        setHasStableIds(true);
+    }
+
+    /**
+     * Swaps in a new immutable snapshot of items. The change from the current snapshot is
+     * computed off the main thread and dispatched as minimal insert, remove and move
+     * notifications, only the latest snapshot handed in is ever applied
+     * @param bottomSheetItems - the items to show
+     */
+    public void setBottomSheetItems(List<BottomSheetItem> bottomSheetItems){
+
+        final List<BottomSheetItem> oldItems = mBottomSheetItems;
+        final List<BottomSheetItem> newItems = bottomSheetItems != null ? bottomSheetItems : Collections.<BottomSheetItem>emptyList();
+        final int generation = ++mGeneration;
+
+        if(oldItems == newItems){
+            return;
+        }
+
+        if(mLabels != null){
+            // Lay the labels out while the snapshot is diffed
+            mLabels.setItems(newItems);
+        }
+
+        if(oldItems.isEmpty() || newItems.isEmpty()){
+            mBottomSheetItems = newItems;
+            if(oldItems.isEmpty()){
+                notifyItemRangeInserted(0, newItems.size());
+            }else{
+                notifyItemRangeRemoved(0, oldItems.size());
+            }
+            return;
+        }
+
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new SnapshotDiff(oldItems, newItems));
+
+                mMainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer snapshot was handed in while this one was diffed
+                        if(generation == mGeneration){
+                            mBottomSheetItems = newItems;
+                            result.dispatchUpdatesTo(BottomSheetAdapter.this);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Holders are inflated with the Activity's context and configuration, so a pool belongs to
+     * one Activity and is never shared with another one, a dead one least of all
+     * @return - a RecycledViewPool for one sheet, sized to hold a screenful of prewarmed holders
+     */
+    static RecyclerView.RecycledViewPool createViewPool(){
+
+        RecyclerView.RecycledViewPool viewPool = new RecyclerView.RecycledViewPool();
+        viewPool.setMaxRecycledViews(VIEW_TYPE_LAYOUT, MAX_POOLED_HOLDERS);
+        viewPool.setMaxRecycledViews(VIEW_TYPE_FLAT, MAX_POOLED_HOLDERS);
+        return viewPool;
+    }
+
+    /**
+     * Inflates item views off the main thread and puts their holders in the RecyclerView's pool,
+     * so the first layout of the sheet binds them without inflating anything
+     * @param recyclerView - the RecyclerView this adapter is set on
+     * @param count - the holders to create, a screenful of cells
+     */
+    public void prewarm(final RecyclerView recyclerView, int count){
+
+        // Flat cells are not inflated, creating them is already cheap
+        if(mLabels != null){
+            return;
+        }
+
+        if(Log.isLoggable(TAG, Log.DEBUG)){
+            Log.d(TAG, "prewarming " + count + " item views");
+        }
+
+        AsyncLayoutInflater inflater = new AsyncLayoutInflater(mContext);
+        AsyncLayoutInflater.OnInflateFinishedListener listener = new AsyncLayoutInflater.OnInflateFinishedListener() {
+            @Override
+            public void onInflateFinished(@NonNull View view, int resid, ViewGroup parent) {
+
+                // createViewHolder takes the prewarmed view and stamps the holder's view type
+                mPrewarmedViews.add(view);
+                recyclerView.getRecycledViewPool().putRecycledView(createViewHolder(recyclerView, VIEW_TYPE_LAYOUT));
+            }
+        };
+
+        for(int i = 0; i < count; i++){
+            inflater.inflate(R.layout.bottom_sheet_item, recyclerView, listener);
+        }
+    }
+
+    /**
+     * Drops any diff still being computed, called when the owning screen goes away
+     */
+    public void cancelPendingUpdates(){
+        mGeneration++;
     }
 
     public void setItemTextColor(int itemTextColor){
         mItemTextColor = itemTextColor;
+        if(mLabels != null){
+            mLabels.setTextColor(itemTextColor);
+        }
+    }
+
+    /**
+     * Switches to cells drawn by a single View with label layouts precomputed off the main
+     * thread, call it before the adapter is set on the RecyclerView
+     * @param flatCells - true to use flat cells
+     */
+    public void setFlatCells(boolean flatCells){
+
+        if(flatCells && mLabels == null){
+            mLabels = new LabelLayoutCache(mContext, mBackgroundExecutor);
+            mLabels.setTextColor(mItemTextColor);
+            mLabels.setItems(mBottomSheetItems);
+        }else if(!flatCells){
+            mLabels = null;
+        }
     }
 
     @Override
-    public int getItemCount() {
+    public int getItemViewType(int position) {
+        return mLabels != null ? VIEW_TYPE_FLAT : VIEW_TYPE_LAYOUT;
+    }
 
-        int count = 0;
+    @Override
+    public int getItemCount() {
+        return mBottomSheetItems.size();
+    }
 
-        if(mBottomSheetItems != null && mBottomSheetItems.size() > 0){
-            count = mBottomSheetItems.size();
-        }
+    @Override
+    public long getItemId(int position) {
 
-        return count;
+        // Stable across snapshots, derived from the component name
+        BottomSheetItem bottomSheetItem = mBottomSheetItems.get(position);
+        return ((long) bottomSheetItem.packageName.hashCode() << 32) | (bottomSheetItem.className.hashCode() & 0xFFFFFFFFL);
     }
 
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.bottom_sheet_item, parent, false);
+
+        if(viewType == VIEW_TYPE_FLAT){
+            ShareTargetCell cell = new ShareTargetCell(parent.getContext());
+            cell.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            return new ViewHolder(cell);
+        }
+
+        View view = mPrewarmedViews.poll();
+        if(view == null){
+            view = LayoutInflater.from(parent.getContext()).inflate(R.layout.bottom_sheet_item, parent, false);
+        }
         return new ViewHolder(view);
     }
 
+    /**
+     * Binds without allocating once the icon is in memory, the holder's click listener was
+     * created with the holder and resolves the item from its position when clicked
+     */
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
 
-        final BottomSheetItem bottomSheetItem = mBottomSheetItems.get(position);
+        BottomSheetItem bottomSheetItem = mBottomSheetItems.get(position);
         if(bottomSheetItem != null){
 
-            holder.imageView.setImageDrawable(bottomSheetItem.drawable);
-            holder.textView.setText(bottomSheetItem.title);
-            holder.textView.setTextColor(mItemTextColor);
+            holder.adapter = this;
 
-            holder.relativeLayout.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    mCallback.onShareTo(bottomSheetItem);
-                    if(Log.isLoggable(TAG, Log.DEBUG)){
-                        Log.d(TAG, "bottom sheet callback invoked");
-                    }
+            if(holder.cell != null){
+                mIconLoader.load(bottomSheetItem, holder.cell);
+                holder.cell.setLabel(mLabels, bottomSheetItem.title);
+            }else{
+                mIconLoader.load(bottomSheetItem, holder.imageView);
+
+                // Both allocate inside TextView, skip them when nothing changed
+                if(!bottomSheetItem.title.equals(holder.textView.getText())){
+                    holder.textView.setText(bottomSheetItem.title);
+                }
+                if(holder.textColor != mItemTextColor){
+                    holder.textColor = mItemTextColor;
+                    holder.textView.setTextColor(mItemTextColor);
                 }
-            });
+            }
+        }
+
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        super.onViewRecycled(holder);
+
+        // Stop loading an icon for a row which is no longer visible
+        mIconLoader.cancel(holder.cell != null ? holder.cell : holder.imageView);
+
+        // The holder may be bound next by the adapter of another SheetHelper set on the same sheet
+        holder.adapter = null;
+    }
+
+    /**
+     * Called by a holder's click listener
+     * @param position - the adapter position of the clicked holder
+     */
+    private void onItemClicked(int position){
+
+        if(position == RecyclerView.NO_POSITION || position >= mBottomSheetItems.size()){
+            return;
+        }
+
+        mCallback.onShareTo(mBottomSheetItems.get(position));
+        if(Log.isLoggable(TAG, Log.DEBUG)){
+            Log.d(TAG, "bottom sheet callback invoked");
+        }
+    }
+
+    /**
+     * DiffUtil callback between two snapshots, items are the same target when their component matches
+     */
+    private static final class SnapshotDiff extends DiffUtil.Callback {
+
+        private final List<BottomSheetItem> oldItems;
+        private final List<BottomSheetItem> newItems;
+
+        SnapshotDiff(List<BottomSheetItem> oldItems, List<BottomSheetItem> newItems){
+            this.oldItems = oldItems;
+            this.newItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            BottomSheetItem oldItem = oldItems.get(oldItemPosition);
+            BottomSheetItem newItem = newItems.get(newItemPosition);
+            return oldItem.packageName.equals(newItem.packageName) && oldItem.className.equals(newItem.className);
         }
 
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldItems.get(oldItemPosition).title.equals(newItems.get(newItemPosition).title);
+        }
     }
 
-    static class ViewHolder extends RecyclerView.ViewHolder{
+    static class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener{
 
         RelativeLayout relativeLayout;
         ImageView imageView;
         AppCompatTextView textView;
 
+        /**
+         * The whole cell when it is flat, the other views are null then
+         */
+        ShareTargetCell cell;
+
+        /**
+         * The adapter which bound the holder last, a new SheetHelper brings a new adapter to the same pool
+         */
+        BottomSheetAdapter adapter;
+
+        /**
+         * The text color last set on {@link #textView}
+         */
+        int textColor;
+
         public ViewHolder(View itemView) {
             super(itemView);
 
+            // One listener for the life of the holder instead of one per bind
+            itemView.setOnClickListener(this);
+
+            if(itemView instanceof ShareTargetCell){
+                cell = (ShareTargetCell) itemView;
+                return;
+            }
+
             relativeLayout = (RelativeLayout) itemView.findViewById(R.id.rl_root_bottom_sheet);
             imageView = (ImageView) itemView.findViewById(R.id.iv_app_icon);
             textView = (AppCompatTextView) itemView.findViewById(R.id.tv_app_name);
         }
+
+        @Override
+        public void onClick(View v) {
+            if(adapter != null){
+                adapter.onItemClicked(getAdapterPosition());
+            }
+        }
     }
 }
@@ -1,41 +1,70 @@
 package com.divshark.bottomsheethelper;
 
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
+import android.content.ComponentName;
 import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 /**
+ * A share target, only the component identity and label are held here, the icon is loaded
+ * when the item is bound by the {@link IconLoader}
  * Created by kyle.jablonski on 4/18/16.
  */
 public class BottomSheetItem implements Parcelable {
 
-    private Bitmap bitmap;
+    /**
+     * Always null, icons are no longer held by the item
+     * @deprecated - icons are loaded by the sheet when a row is bound, use
+     * PackageManager#getActivityIcon with {@link #packageName} and {@link #className} if you need one
+     */
+    @Deprecated
     public Drawable drawable;
+
     public String title;
     public String className;
     public String packageName;
 
+    /**
+     * The component and its cache key, created on first use so binding the item again allocates nothing
+     */
+    private ComponentName component;
+    private String componentKey;
+
     public BottomSheetItem(){}
 
     public BottomSheetItem(Parcel source){
-        bitmap = source.readParcelable(getClass().getClassLoader());
-        drawable = new BitmapDrawable(bitmap);
         title = source.readString();
         className = source.readString();
         packageName = source.readString();
     }
 
+    ComponentName getComponent(){
+
+        if(component == null){
+            component = new ComponentName(packageName, className);
+        }
+        return component;
+    }
+
+    String getComponentKey(){
+
+        if(componentKey == null){
+            componentKey = getComponent().flattenToShortString();
+        }
+        return componentKey;
+    }
+
     @Override
     public int describeContents() {
         return 0;
     }
 
+    /**
+     * Writes only the label and component, the icon is looked up again from the icon cache when
+     * the restored item is bound, so saved sheets stay small whatever the icons are
+     */
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
-        dest.writeParcelable(bitmap, flags);
         dest.writeString(title);
         dest.writeString(className);
         dest.writeString(packageName);
@@ -0,0 +1,46 @@
+package com.divshark.bottomsheethelper;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 helpers for naming content addressed share files
+ */
+final class Digests {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Digests(){}
+
+    /**
+     * @return - a new SHA-1 MessageDigest
+     */
+    static MessageDigest newSha1(){
+
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Android device ships SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param value - the String to hash
+     * @return - the hex SHA-1 of the String's UTF-8 bytes
+     */
+    static String sha1Hex(CharSequence value){
+        return toHex(newSha1().digest(value.toString().getBytes(UTF_8)));
+    }
+
+    static String toHex(byte[] bytes){
+
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++){
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -4,13 +4,22 @@ package com.divshark.bottomsheethelper;
  * Created by kyle.jablonski on 4/18/16.
  */
 public enum FileType {
-    BITMAP(0), TEXT(1);
+    BITMAP(0, null), TEXT(1, ".txt");
     int fileType;
-    FileType(int fileType){
+    String fileExtension;
+    FileType(int fileType, String fileExtension){
         this.fileType = fileType;
+        this.fileExtension = fileExtension;
     }
 
     int getFileType(){
         return fileType;
     }
+
+    /**
+     * @return - the extension of files of this type, null when it depends on the encoding
+     */
+    String getFileExtension(){
+        return fileExtension;
+    }
 }
@@ -0,0 +1,115 @@
+package com.divshark.bottomsheethelper;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Pool of slot sized icon bitmaps recycled through {@code inBitmap} decoding and canvas rendering.
+ *
+ * Every bitmap handed out of the {@link TargetArtifactCache} is pinned while an ImageView shows
+ * it, a bitmap evicted from the cache only returns to the pool once nothing pins it, so a pooled
+ * bitmap is never drawn into while it is on screen.
+ */
+final class IconBitmapPool {
+
+    /**
+     * Edge length of every pooled bitmap in pixels
+     */
+    private final int size;
+
+    /**
+     * Most bitmaps kept in the pool
+     */
+    private final int maxPooled;
+
+    private final ArrayDeque<Bitmap> pool = new ArrayDeque<>();
+
+    private final Map<Bitmap, Integer> pins = new IdentityHashMap<>();
+
+    private final Map<Bitmap, Boolean> evicted = new IdentityHashMap<>();
+
+    IconBitmapPool(int size, int maxPooled){
+        this.size = size;
+        this.maxPooled = maxPooled;
+    }
+
+    int getSize(){
+        return size;
+    }
+
+    /**
+     * @return - a cleared, mutable bitmap of {@link #getSize()} pixels, from the pool when possible
+     */
+    Bitmap get(){
+
+        Bitmap bitmap;
+        synchronized (this){
+            bitmap = pool.poll();
+        }
+
+        if(bitmap == null){
+            return Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        }
+
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap which was taken with {@link #get()} but never published
+     * @param bitmap - the unused bitmap
+     */
+    synchronized void put(Bitmap bitmap){
+
+        if(bitmap.isMutable() && bitmap.getWidth() == size && bitmap.getHeight() == size && pool.size() < maxPooled){
+            pool.push(bitmap);
+        }
+    }
+
+    /**
+     * Pins a bitmap while it is displayed
+     * @param bitmap - the bitmap
+     */
+    synchronized void acquire(Bitmap bitmap){
+
+        Integer count = pins.get(bitmap);
+        pins.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Releases a pin, the bitmap is pooled if it was evicted and this was the last pin
+     * @param bitmap - the bitmap
+     */
+    synchronized void release(Bitmap bitmap){
+
+        Integer count = pins.get(bitmap);
+        if(count == null){
+            return;
+        }
+
+        if(count > 1){
+            pins.put(bitmap, count - 1);
+        }else{
+            pins.remove(bitmap);
+            if(evicted.remove(bitmap) != null){
+                put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Called when the cache drops a bitmap, it is pooled now or once its last pin is released
+     * @param bitmap - the bitmap
+     */
+    synchronized void evicted(Bitmap bitmap){
+
+        if(pins.containsKey(bitmap)){
+            evicted.put(bitmap, Boolean.TRUE);
+        }else{
+            put(bitmap);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads share target icons on demand as rows are bound, through the {@link TargetArtifactCache}.
+ *
+ * A load is tied to the view it was started for, an ImageView or a {@link ShareTargetCell}, binding
+ * the view again or recycling its holder cancels the stale load so off screen rows never finish
+ * loading. The icons are already
+ * rasterized at the slot size, the bitmap shown by a view stays pinned in the
+ * {@link IconBitmapPool} until the view shows something else.
+ *
+ * Each {@link BottomSheetAdapter} owns a loader running on the Executors of its {@link SheetHelper},
+ * the icons themselves are shared through the {@link TargetArtifactCache}. The background Executor
+ * may belong to the app, so a stale load is never interrupted, it checks whether it was cancelled
+ * before and after loading instead.
+ *
+ * All methods must be called on the main thread.
+ */
+final class IconLoader {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = IconLoader.class.getSimpleName();
+
+    private final PackageManager packageManager;
+
+    private final TargetArtifactCache artifactCache;
+
+    private final Executor backgroundExecutor;
+
+    private final Executor mainExecutor;
+
+    IconLoader(Context context, Executor backgroundExecutor, Executor mainExecutor){
+        this.packageManager = context.getApplicationContext().getPackageManager();
+        this.artifactCache = TargetArtifactCache.getInstance(context);
+        this.backgroundExecutor = backgroundExecutor;
+        this.mainExecutor = mainExecutor;
+    }
+
+    /**
+     * Shows the icon for the item in the view, synchronously when it is in memory
+     * @param bottomSheetItem - the item to show the icon for
+     * @param imageView - the target ImageView or ShareTargetCell
+     */
+    void load(BottomSheetItem bottomSheetItem, View imageView){
+
+        // Cached on the item, a bind from memory allocates nothing
+        ComponentName component = bottomSheetItem.getComponent();
+
+        Object tag = imageView.getTag(R.id.bsh_icon_request);
+        if(tag instanceof Request){
+            if(((Request) tag).component.equals(component)){
+                return;
+            }
+            ((Request) tag).future.cancel(false);
+        }
+
+        Bitmap icon = artifactCache.peekIcon(bottomSheetItem.getComponentKey());
+        if(icon != null){
+            imageView.setTag(R.id.bsh_icon_request, null);
+            show(imageView, icon);
+            return;
+        }
+
+        show(imageView, null);
+
+        Request request = new Request(component, imageView);
+        imageView.setTag(R.id.bsh_icon_request, request);
+        backgroundExecutor.execute(request.future);
+    }
+
+    /**
+     * Cancels any load running for the view, called when its holder is recycled
+     * @param imageView - the ImageView or ShareTargetCell
+     */
+    void cancel(View imageView){
+
+        Object tag = imageView.getTag(R.id.bsh_icon_request);
+        if(tag instanceof Request){
+            ((Request) tag).future.cancel(false);
+        }
+        imageView.setTag(R.id.bsh_icon_request, null);
+        show(imageView, null);
+    }
+
+    /**
+     * Shows a pinned icon, releasing the icon the view showed before
+     * @param imageView - the ImageView or ShareTargetCell
+     * @param icon - the pinned icon or null to show the placeholder
+     */
+    private void show(View imageView, Bitmap icon){
+
+        Object shown = imageView.getTag(R.id.bsh_icon_bitmap);
+        if(shown instanceof Bitmap){
+            artifactCache.releaseIcon((Bitmap) shown);
+        }
+
+        imageView.setTag(R.id.bsh_icon_bitmap, icon);
+        if(imageView instanceof ShareTargetCell){
+            ((ShareTargetCell) imageView).setIcon(icon);
+        }else if(icon != null){
+            ((ImageView) imageView).setImageBitmap(icon);
+        }else{
+            ((ImageView) imageView).setImageResource(R.drawable.bsh_icon_placeholder);
+        }
+    }
+
+    /**
+     * An icon load for one view
+     */
+    private final class Request implements Runnable {
+
+        final ComponentName component;
+        final View imageView;
+        final FutureTask<Void> future;
+
+        Bitmap icon;
+
+        Request(ComponentName component, View imageView){
+            this.component = component;
+            this.imageView = imageView;
+            this.future = new FutureTask<Void>(this, null);
+        }
+
+        @Override
+        public void run() {
+
+            if(future.isCancelled()){
+                return;
+            }
+
+            try {
+                icon = artifactCache.getIcon(packageManager, component);
+            } catch (PackageManager.NameNotFoundException ex) {
+
+                if(Log.isLoggable(TAG, Log.DEBUG)){
+                    Log.d(TAG, "share target is gone " + component, ex);
+                }
+                return;
+            }
+
+            // Cancelled while loading, the icon stays in the cache for the next bind
+            if(future.isCancelled()){
+                artifactCache.releaseIcon(icon);
+                return;
+            }
+
+            mainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(!future.isCancelled() && imageView.getTag(R.id.bsh_icon_request) == Request.this){
+                        imageView.setTag(R.id.bsh_icon_request, null);
+                        show(imageView, icon);
+                    }else{
+                        artifactCache.releaseIcon(icon);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.support.v4.util.LruCache;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.TypedValue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Text layouts of the share target labels for the {@link ShareTargetCell}s of one adapter.
+ *
+ * Once the cells report their label width, the layouts for every item in the snapshot are built
+ * on the background Executor, so binding a cell only looks its layout up. A label missing from
+ * the cache, such as one bound before the precompute reached it or evicted since, is laid out on
+ * the spot. The cache keeps the {@link #MAX_LAYOUTS} most recently used labels, so labels of
+ * targets no longer shown do not stay for the life of the process.
+ *
+ * A paint is never changed once a layout uses it, each precompute pass builds with a copy of its
+ * own so the background thread never measures with a paint the main thread draws with or changes.
+ *
+ * {@link #get(String, int)}, {@link #setItems(List)} and {@link #setTextColor(int)} must be
+ * called on the main thread.
+ */
+final class LabelLayoutCache {
+
+    /**
+     * Label text size, the default size of the TextView in the layout based cell
+     */
+    private static final float TEXT_SIZE_SP = 14f;
+
+    /**
+     * Number of layouts kept, more than a sheet shows at once
+     */
+    private static final int MAX_LAYOUTS = 512;
+
+    /**
+     * The paint of the layouts built on the main thread, replaced rather than changed
+     */
+    private TextPaint paint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+
+    private final Executor backgroundExecutor;
+
+    /**
+     * Layouts by label, a layout built for another width is replaced on lookup
+     */
+    private final LruCache<String, StaticLayout> layouts = new LruCache<>(MAX_LAYOUTS);
+
+    /**
+     * Incremented whenever the items or width change, a precompute stops once it is stale
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private List<BottomSheetItem> items = Collections.emptyList();
+
+    private int width;
+
+    LabelLayoutCache(Context context, Executor backgroundExecutor){
+        this.backgroundExecutor = backgroundExecutor;
+        paint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP,
+                context.getResources().getDisplayMetrics()));
+    }
+
+    /**
+     * Sets the label color, the layouts built with the previous color are built again
+     * @param color - the color
+     */
+    void setTextColor(int color){
+
+        if(color == paint.getColor()){
+            return;
+        }
+
+        TextPaint paint = new TextPaint(this.paint);
+        paint.setColor(color);
+        this.paint = paint;
+        layouts.evictAll();
+        precompute();
+    }
+
+    /**
+     * Precomputes the layouts for a new snapshot if the width is already known
+     * @param items - the snapshot
+     */
+    void setItems(List<BottomSheetItem> items){
+        this.items = items;
+        precompute();
+    }
+
+    /**
+     * @param title - the label
+     * @param width - the width to lay it out in
+     * @return - the layout of the label
+     */
+    StaticLayout get(String title, int width){
+
+        if(title == null){
+            title = "";
+        }
+
+        if(width != this.width){
+            // The cells changed size, every layout is stale
+            this.width = width;
+            layouts.evictAll();
+            precompute();
+        }
+
+        // A pass which went stale as it finished may have put a layout of the previous color
+        StaticLayout layout = layouts.get(title);
+        if(layout == null || layout.getWidth() != width || layout.getPaint().getColor() != paint.getColor()){
+            layout = build(title, paint, width);
+            layouts.put(title, layout);
+        }
+        return layout;
+    }
+
+    private void precompute(){
+
+        final int current = generation.incrementAndGet();
+        final List<BottomSheetItem> snapshot = items;
+        final int layoutWidth = width;
+        if(layoutWidth <= 0 || snapshot.isEmpty()){
+            return;
+        }
+
+        // Copied on the main thread, only this pass and the layouts it builds use the copy
+        final TextPaint passPaint = new TextPaint(paint);
+
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(BottomSheetItem bottomSheetItem : snapshot){
+
+                    if(generation.get() != current){
+                        return;
+                    }
+
+                    String title = bottomSheetItem.title != null ? bottomSheetItem.title : "";
+                    StaticLayout layout = layouts.get(title);
+                    if(layout == null || layout.getWidth() != layoutWidth){
+                        StaticLayout built = build(title, passPaint, layoutWidth);
+                        if(generation.get() != current){
+                            return;
+                        }
+                        layouts.put(title, built);
+                    }
+                }
+            }
+        });
+    }
+
+    private static StaticLayout build(String title, TextPaint paint, int width){
+        return new StaticLayout(title, paint, Math.max(0, width), Layout.Alignment.ALIGN_CENTER, 1f, 0f, false);
+    }
+}
@@ -0,0 +1,32 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Receiver for package install, removal and update broadcasts, the set of apps which can
+ * handle a share may have changed so the {@link ShareTargetIndex} and the
+ * {@link ShareTargetRepository} snapshots are invalidated
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = PackageChangeReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+
+        if(Log.isLoggable(TAG, Log.DEBUG)){
+            Log.d(TAG, "invalidating share targets for " + intent.getAction() + " " + intent.getData());
+        }
+
+        // The repository last, it restarts resolves running against the other two
+        ShareTargetIndex.invalidate(context);
+        TargetArtifactCache.getInstance(context).invalidate();
+        ShareTargetRepository.getInstance(context).invalidate();
+    }
+}
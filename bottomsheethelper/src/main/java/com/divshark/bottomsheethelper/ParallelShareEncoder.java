@@ -0,0 +1,182 @@
+package com.divshark.bottomsheethelper;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Encodes the items of a multiple share in parallel on the encoder Executor of the {@link SheetHelper}.
+ *
+ * Every running encode holds its estimated memory from one budget shared by all shares in the
+ * process, an item waits to start until the budget has room for it, so a batch of large images
+ * never has more in flight than the heap can hold. An item larger than the whole budget runs alone.
+ * Waiting for the budget or an encode gives up as soon as the request is cancelled or times out.
+ *
+ * The Executor may be the app's own and may be busy with the very thread waiting here, so an
+ * encode which has not started by the time it is waited for runs on the waiting thread instead.
+ */
+final class ParallelShareEncoder {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = ParallelShareEncoder.class.getSimpleName();
+
+    /**
+     * The budget is counted in KB so it fits a Semaphore's int permits
+     */
+    private static final int BUDGET_KB = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8 / 1024);
+
+    private static final Semaphore sBudget = new Semaphore(BUDGET_KB, true);
+
+    /**
+     * How often a wait checks whether the request was cancelled
+     */
+    private static final long POLL_MILLIS = 100L;
+
+    private ParallelShareEncoder(){}
+
+    /**
+     * Encodes every payload into the store, blocking until they are done, call it on a background thread
+     * @param store - the store to write the files to
+     * @param payloads - the payloads
+     * @param encoder - the encoder for the payloads
+     * @param executor - the Executor to encode on
+     * @param minFiles - the fewest files which make a share, an item failing to encode is left out
+     * @param request - the request reporting progress and cancellation, may be null
+     * @param <T> - the payload type
+     * @return - the Uris in the order of the payloads
+     * @throws IOException - if fewer than minFiles were encoded or the request was cancelled
+     */
+    static <T> ArrayList<Uri> encode(final ShareFileStore store, List<? extends T> payloads, final ShareEncoder<T> encoder,
+                                     Executor executor, int minFiles, ShareFileRequest request) throws IOException {
+
+        List<FutureTask<Uri>> futures = new ArrayList<>(payloads.size());
+        try {
+            for(final T payload : payloads){
+
+                checkCancelled(request);
+
+                final int permits = permits(encoder.estimateMemory(payload));
+                acquire(permits, futures, request);
+
+                // Released once the encode ends, also when it is cancelled before it starts
+                FutureTask<Uri> task = new FutureTask<Uri>(new Callable<Uri>() {
+                    @Override
+                    public Uri call() throws Exception {
+                        return store.obtain(payload, encoder);
+                    }
+                }) {
+                    @Override
+                    protected void done() {
+                        sBudget.release(permits);
+                    }
+                };
+
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException ex) {
+                    sBudget.release(permits);
+                    throw ex;
+                }
+                futures.add(task);
+            }
+
+            ArrayList<Uri> filesToShare = new ArrayList<>(futures.size());
+            for(int i = 0; i < futures.size(); i++){
+
+                // Does nothing if the Executor started it already
+                checkCancelled(request);
+                futures.get(i).run();
+
+                Uri fileToShare = await(futures.get(i), request);
+                if(fileToShare != null){
+                    filesToShare.add(fileToShare);
+                }
+
+                if(request != null){
+                    request.publishProgress((i + 1) * 100 / futures.size());
+                }
+            }
+
+            if(filesToShare.size() < minFiles){
+                throw new IOException("Only " + filesToShare.size() + " of " + payloads.size() + " share files were encoded");
+            }
+            return filesToShare;
+
+        } finally {
+            // Stop whatever did not start when giving up early
+            for(Future<Uri> future : futures){
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for room in the budget, running the encodes already submitted which the Executor has
+     * not started since they hold the budget
+     * @throws IOException - if the request was cancelled or the thread interrupted while waiting
+     */
+    private static void acquire(int permits, List<FutureTask<Uri>> submitted, ShareFileRequest request) throws IOException {
+
+        try {
+            while(!sBudget.tryAcquire(permits, POLL_MILLIS, TimeUnit.MILLISECONDS)){
+                checkCancelled(request);
+                for(FutureTask<Uri> task : submitted){
+                    task.run();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to encode a share file");
+        }
+    }
+
+    /**
+     * Waits for an encode
+     * @return - the Uri of the file, null if the encode failed and is left out
+     * @throws IOException - if the request was cancelled or the thread interrupted while waiting
+     */
+    private static Uri await(Future<Uri> future, ShareFileRequest request) throws IOException {
+
+        while(true){
+            try {
+                return future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                checkCancelled(request);
+            } catch (ExecutionException ex) {
+
+                if(Log.isLoggable(TAG, Log.WARN)){
+                    Log.w(TAG, "Failed to encode a share file, leaving it out", ex.getCause());
+                }
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a share file");
+            }
+        }
+    }
+
+    private static void checkCancelled(ShareFileRequest request) throws InterruptedIOException {
+
+        if(request != null && request.isCancelled()){
+            throw new InterruptedIOException("Share cancelled");
+        }
+    }
+
+    private static int permits(long bytes){
+        return (int) Math.max(1, Math.min(BUDGET_KB, bytes / 1024));
+    }
+}
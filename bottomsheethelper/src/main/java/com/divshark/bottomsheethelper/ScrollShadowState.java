@@ -0,0 +1,71 @@
+package com.divshark.bottomsheethelper;
+
+/**
+ * Tracks the shadow under the sheet title while the grid scrolls, so the scroll listener only starts
+ * an animation when the shadow actually changes instead of on every scroll event.
+ *
+ * Plain Java without any View, all methods must be called on the main thread.
+ */
+final class ScrollShadowState {
+
+    /**
+     * Nothing to do for this scroll event
+     */
+    static final int NONE = 0;
+
+    /**
+     * Fade the shadow in
+     */
+    static final int SHOW = 1;
+
+    /**
+     * Fade the shadow out, then call {@link #onHideEnd()}
+     */
+    static final int HIDE = 2;
+
+    private static final int HIDDEN = 0;
+    private static final int SHOWN = 1;
+    private static final int HIDING = 2;
+
+    private int state = HIDDEN;
+
+    /**
+     * Called for each scroll event of the grid
+     * @param dy - the vertical scroll delta
+     * @param atTop - true when the first item is visible
+     * @return - {@link #NONE}, {@link #SHOW} or {@link #HIDE}
+     */
+    int onScrolled(int dy, boolean atTop){
+
+        if(atTop){
+            if(state == SHOWN){
+                state = HIDING;
+                return HIDE;
+            }
+        }else if(dy > 0 && state != SHOWN){
+            state = SHOWN;
+            return SHOW;
+        }
+        return NONE;
+    }
+
+    /**
+     * Called when the hide animation ends
+     * @return - true if the shadow should now be made invisible, false if it was shown again meanwhile
+     */
+    boolean onHideEnd(){
+
+        if(state == HIDING){
+            state = HIDDEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return - true if the shadow is shown or being shown
+     */
+    boolean isShown(){
+        return state == SHOWN;
+    }
+}
@@ -0,0 +1,67 @@
+package com.divshark.bottomsheethelper;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+/**
+ * Fades the shadow under the sheet title in once the grid scrolls down and out again at the top.
+ *
+ * A {@link ScrollShadowState} decides when the shadow changes, so the scroll events arriving
+ * every frame in between start no animation and allocate nothing.
+ */
+final class ShadowScrollListener extends RecyclerView.OnScrollListener {
+
+    /**
+     * Duration of the fade in and out
+     */
+    private static final long FADE_MILLIS = 100L;
+
+    private final View shadow;
+
+    private final ScrollShadowState state = new ScrollShadowState();
+
+    /**
+     * Hides the shadow once it faded out, reused for every hide
+     */
+    private final AnimatorListenerAdapter hideListener = new AnimatorListenerAdapter() {
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            if(state.onHideEnd()){
+                shadow.setVisibility(View.INVISIBLE);
+            }
+        }
+    };
+
+    /**
+     * @param shadow - the shadow View, it must be on a RecyclerView with a LinearLayoutManager
+     */
+    ShadowScrollListener(View shadow){
+        this.shadow = shadow;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        super.onScrolled(recyclerView, dx, dy);
+
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        boolean atTop = layoutManager.findFirstVisibleItemPosition() == 0;
+
+        switch(state.onScrolled(dy, atTop)){
+
+            case ScrollShadowState.SHOW:
+                if(shadow.getVisibility() != View.VISIBLE){
+                    shadow.setAlpha(0f);
+                    shadow.setVisibility(View.VISIBLE);
+                }
+                shadow.animate().setDuration(FADE_MILLIS).alpha(1f).setListener(null);
+                break;
+
+            case ScrollShadowState.HIDE:
+                shadow.animate().setDuration(FADE_MILLIS).alpha(0f).setListener(hideListener);
+                break;
+        }
+    }
+}
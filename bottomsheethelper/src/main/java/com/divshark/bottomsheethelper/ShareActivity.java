@@ -1,25 +1,32 @@
 package com.divshark.bottomsheethelper;
 
 import android.Manifest;
-import android.animation.Animator;
-import android.animation.AnimatorListenerAdapter;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.annotation.LayoutRes;
 import android.support.annotation.NonNull;
 import android.support.design.widget.BottomSheetBehavior;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.AppCompatEditText;
 import android.support.v7.widget.AppCompatTextView;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewStub;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.view.inputmethod.InputMethodManager;
 import android.widget.FrameLayout;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
@@ -27,6 +34,14 @@ import android.widget.Toast;
 import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * Base class to create the sharing capability in any activity
  * Created by kyle.jablonski on 4/18/16.
@@ -39,11 +54,23 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
     // using a large value here to not conflict with other Requests
     private static final int MY_PERMISSIONS_REQUEST_READ_EXTERNAL_STORAGE = 7002;
 
+    // How often a request waiting on createShareFile() checks whether it was cancelled
+    private static final long MAIN_THREAD_POLL_MILLIS = 100L;
+
+    // Saved instance state keys, the items are only saved while the sheet shows
+    private static final String STATE_SHEET = "com.divshark.bottomsheethelper.STATE_SHEET";
+    private static final String STATE_ITEMS = "com.divshark.bottomsheethelper.STATE_ITEMS";
+
     /**
      * Title AppCompatTextView for the Bottom Sheet
      */
     private AppCompatTextView mBsTitle;
 
+    /**
+     * Search field under the title, shown when the {@link SheetHelper} is searchable
+     */
+    private AppCompatEditText mEtSearch;
+
     /**
      * Shadow View for the bottom of the title, shows on scroll
      */
@@ -65,10 +92,15 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
     private BottomSheetItem mBottomSheetItem;
 
     /**
-     * The RelativeLayout which wraps the RecyclerView
+     * The RelativeLayout which wraps the RecyclerView, null until the sheet is inflated
      */
     private RelativeLayout mRlBottomSheet;
 
+    /**
+     * ViewStub the sheet is inflated from the first time it is needed
+     */
+    private ViewStub mVsBottomSheet;
+
     /**
      * The primary SheetHelper which controls the setup of the Sheet and
      * sharing capabilities
@@ -81,7 +113,41 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
     private GridLayoutManager mGridLayoutManager;
 
     /**
-     * Implementations will need this method to create the file they need to share
+     * The share file being prepared in the background, if any
+     */
+    private ShareFileRequest mShareFileRequest;
+
+    /**
+     * true once a target was chosen and the share file being prepared should be shared to it
+     */
+    private boolean mShareRequested;
+
+    /**
+     * Share files prepared speculatively which no target was chosen for yet
+     */
+    private ArrayList<Uri> mPreparedFiles;
+
+    /**
+     * Files shared from this Activity, pinned in the {@link ShareFileStore} while the receiving
+     * apps may still be reading them
+     */
+    private final List<Uri> mSharedFiles = new ArrayList<>();
+
+    /**
+     * Retained Fragment carrying the sharing state across configuration changes
+     */
+    private ShareStateFragment mShareState;
+
+    /**
+     * The sheet state and items saved before the process was killed, until the SheetHelper is set
+     */
+    private int mSavedSheetState = BottomSheetBehavior.STATE_HIDDEN;
+    private ArrayList<BottomSheetItem> mSavedItems;
+
+    /**
+     * Implementations will need this method to create the file they need to share, it is called
+     * on the main thread. Override {@link #createShareFile(ShareFileRequest)} instead to create
+     * the file on a background thread
      * @return - the Uri pointing to the file we want to share
      */
     protected abstract Uri createShareFile();
@@ -94,28 +160,392 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
      */
     protected abstract boolean setupShareIntent(BottomSheetItem bottomSheetItem, Uri fileToShare);
 
+    /**
+     * Creates the file to share on a background thread, override to check
+     * {@link ShareFileRequest#isCancelled()} and report {@link ShareFileRequest#publishProgress(int)}
+     * while producing a large file. The default runs {@link #createShareFile()} on the main thread
+     * and waits for it
+     * @param request - the request the file is produced for
+     * @return - the Uri pointing to the file we want to share
+     */
+    protected Uri createShareFile(ShareFileRequest request){
+
+        FutureTask<Uri> task = new FutureTask<>(new Callable<Uri>() {
+            @Override
+            public Uri call() throws Exception {
+                return createShareFile();
+            }
+        });
+        mSheetHelper.getMainExecutor().execute(task);
+
+        while(true){
+            try {
+                return task.get(MAIN_THREAD_POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+            } catch (TimeoutException ex) {
+
+                // Only give up before it runs, a file it already created is still returned
+                if(request.isCancelled() && task.cancel(false)){
+                    return null;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                task.cancel(false);
+                return null;
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Creates the files for an Intent.ACTION_SEND_MULTIPLE share on a background thread, override
+     * and use {@link SheetHelper#createShareFiles(List, ShareFileRequest)} to encode them in parallel.
+     * The default shares the single file from {@link #createShareFile(ShareFileRequest)}
+     * @param request - the request the files are produced for
+     * @return - the Uris pointing to the files we want to share
+     */
+    protected ArrayList<Uri> createShareFiles(ShareFileRequest request){
+
+        Uri fileToShare = createShareFile(request);
+        if(fileToShare == null){
+            return null;
+        }
+
+        ArrayList<Uri> filesToShare = new ArrayList<>(1);
+        filesToShare.add(fileToShare);
+        return filesToShare;
+    }
+
+    /**
+     * Sets up the Intent for the files from {@link #createShareFiles(ShareFileRequest)}. The default
+     * hands a single file to {@link #setupShareIntent(BottomSheetItem, Uri)} and sends several as an
+     * Intent.ACTION_SEND_MULTIPLE with an ArrayList of Uris in Intent.EXTRA_STREAM. Several files
+     * are only sent when the SheetHelper's action is Intent.ACTION_SEND_MULTIPLE, the targets are
+     * resolved for that action and one resolved for another may not accept it
+     * @param bottomSheetItem - the bottom sheet item to share to
+     * @param filesToShare - the Uris for the files to share
+     * @return - true/false if the share was a success
+     */
+    protected boolean setupShareIntent(BottomSheetItem bottomSheetItem, ArrayList<Uri> filesToShare){
+
+        if(!Intent.ACTION_SEND_MULTIPLE.equals(mSheetHelper.getAction())){
+
+            if(filesToShare.size() == 1){
+                return setupShareIntent(bottomSheetItem, filesToShare.get(0));
+            }
+
+            if(Log.isLoggable(TAG, Log.ERROR)){
+                Log.e(TAG, filesToShare.size() + " files to share need the Intent.ACTION_SEND_MULTIPLE action, not "
+                        + mSheetHelper.getAction());
+            }
+            Toast.makeText(ShareActivity.this, getString(R.string.share_file_failed), Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
+        Intent shareIntent = new Intent(Intent.ACTION_SEND_MULTIPLE);
+        shareIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, filesToShare);
+        shareIntent.setType(mSheetHelper.getMimeType());
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        shareIntent.setClassName(bottomSheetItem.packageName, bottomSheetItem.className);
+
+        if(mSheetHelper.getExtraText() != null){
+            shareIntent.putExtra(Intent.EXTRA_TEXT, mSheetHelper.getExtraText());
+        }
+
+        if(mSheetHelper.getSubject() != null){
+            shareIntent.putExtra(Intent.EXTRA_SUBJECT, mSheetHelper.getSubject());
+        }
+
+        if(mSheetHelper.getTitle() != null) {
+            shareIntent.putExtra(Intent.EXTRA_TITLE, mSheetHelper.getTitle());
+        }
+        startActivity(shareIntent);
+
+        return true;
+    }
+
+    /**
+     * Called on the main thread as the share file is prepared, override to show progress
+     * @param progress - the progress from 0 to 100
+     */
+    protected void onShareFileProgress(int progress){}
+
+    /**
+     * Whether the share file lives where reading it needs READ_EXTERNAL_STORAGE, asked for on
+     * Android 6.0 and up. Text and payloads streamed with {@link SheetHelper#isPipeShareFile()}
+     * never touch storage, anything else may be written by {@link #createShareFile()} wherever
+     * it likes so the permission is asked for as it always was. Override to return false when
+     * the files come from {@link SheetHelper#getShareFileStore()}, which is in internal storage
+     * behind a provider granting the read
+     * @return - true to ask for the permission before preparing the file
+     */
+    protected boolean requiresStoragePermission(){
+        return mSheetHelper.getFileType() != FileType.TEXT && !mSheetHelper.isPipeShareFile();
+    }
+
+    /**
+     * Creates the text for a {@link FileType#TEXT} share on the main thread, no file is written
+     * @return - the text to share, the default is {@link SheetHelper#getExtraText()}
+     */
+    protected CharSequence createShareText(){
+        return mSheetHelper.getExtraText();
+    }
+
+    /**
+     * Sets up and starts the Intent for a {@link FileType#TEXT} share, the text goes in Intent.EXTRA_TEXT
+     * @param bottomSheetItem - the bottom sheet item to share to
+     * @param text - the text to share
+     * @return - true/false if the share was a success
+     */
+    protected boolean setupShareText(BottomSheetItem bottomSheetItem, CharSequence text){
+
+        Intent shareIntent = new Intent(mSheetHelper.getAction());
+        shareIntent.setType(mSheetHelper.getMimeType() != null ? mSheetHelper.getMimeType() : "text/plain");
+        shareIntent.putExtra(Intent.EXTRA_TEXT, text);
+        shareIntent.setClassName(bottomSheetItem.packageName, bottomSheetItem.className);
+
+        if(mSheetHelper.getSubject() != null){
+            shareIntent.putExtra(Intent.EXTRA_SUBJECT, mSheetHelper.getSubject());
+        }
+
+        if(mSheetHelper.getTitle() != null) {
+            shareIntent.putExtra(Intent.EXTRA_TITLE, mSheetHelper.getTitle());
+        }
+        startActivity(shareIntent);
+
+        return true;
+    }
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // Receives the outcome of share files still being prepared for the instance this one replaces
+        mShareState = ShareStateFragment.attach(this);
+        mShareState.setCallback(ShareFileCallback);
+
+        if(savedInstanceState != null){
+            mSavedSheetState = savedInstanceState.getInt(STATE_SHEET, BottomSheetBehavior.STATE_HIDDEN);
+            mSavedItems = savedInstanceState.getParcelableArrayList(STATE_ITEMS);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        if(isSheetShowing() && mSheetHelper != null){
+            // Each item parcels to its component and label, a few bytes instead of an icon
+            outState.putInt(STATE_SHEET, behavior.getState());
+            outState.putParcelableArrayList(STATE_ITEMS, new ArrayList<>(mSheetHelper.getBottomSheetItems()));
+        }
+    }
 
     @Override
     public void setContentView(@LayoutRes int layoutResID) {
 
+        // Only the content is inflated now, the sheet waits in a ViewStub until it is needed
         View view = getLayoutInflater().inflate(R.layout.share_activity, null);
         FrameLayout content = (FrameLayout) view.findViewById(R.id.content);
-        mBsTitle = (AppCompatTextView) view.findViewById(R.id.tv_bottom_sheet_title);
-        mRlBottomSheet  = (RelativeLayout) view.findViewById(R.id.rl_bottom_sheet);
-        mRvBottomSheet = (RecyclerView) view.findViewById(R.id.rv_bottom_sheet);
-        mFlShadow = view.findViewById(R.id.fl_shadow);
-        behavior = BottomSheetBehavior.from(mRlBottomSheet);
-        mRvBottomSheet.setOnScrollListener(ScrollChangeListener);
+        mVsBottomSheet = (ViewStub) view.findViewById(R.id.vs_bottom_sheet);
 
         getLayoutInflater().inflate(layoutResID, content, true);
 
         super.setContentView(view);
     }
 
+    /**
+     * Inflates the sheet from its ViewStub unless it already was, and sets it up with the
+     * {@link SheetHelper} if there is one
+     */
+    private void inflateSheet(){
+
+        if(mRlBottomSheet != null){
+            return;
+        }
+
+        if(Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "inflating the share sheet");
+        }
+
+        mRlBottomSheet = (RelativeLayout) mVsBottomSheet.inflate();
+        mVsBottomSheet = null;
+        mBsTitle = (AppCompatTextView) mRlBottomSheet.findViewById(R.id.tv_bottom_sheet_title);
+        mRvBottomSheet = (RecyclerView) mRlBottomSheet.findViewById(R.id.rv_bottom_sheet);
+        mFlShadow = mRlBottomSheet.findViewById(R.id.fl_shadow);
+        mEtSearch = (AppCompatEditText) mRlBottomSheet.findViewById(R.id.et_bottom_sheet_search);
+        behavior = BottomSheetBehavior.from(mRlBottomSheet);
+        mRvBottomSheet.setOnScrollListener(new ShadowScrollListener(mFlShadow));
+
+        // Room for the prewarmed holders, the pool is this Activity's alone
+        mRvBottomSheet.setRecycledViewPool(BottomSheetAdapter.createViewPool());
+
+        if(mSheetHelper != null){
+            bindSheet();
+        }
+    }
+
+    /**
+     * Sets up the inflated sheet with the {@link SheetHelper}
+     */
+    private void bindSheet(){
+
+        mRlBottomSheet.setBackgroundColor(mSheetHelper.getBackgroundColor());
+        mBsTitle.setTextColor(mSheetHelper.getTitleColor());
+
+        mEtSearch.removeTextChangedListener(SearchWatcher);
+        if(mSheetHelper.isSearchable()){
+            mEtSearch.setTextColor(mSheetHelper.getItemTextColor());
+            mEtSearch.setVisibility(View.VISIBLE);
+            mEtSearch.addTextChangedListener(SearchWatcher);
+        }else{
+            mEtSearch.setVisibility(View.GONE);
+        }
+
+        // sets up the layout manager using the Sheet Helper
+        mGridLayoutManager = new GridLayoutManager(this, mSheetHelper.getColumnCount());
+        mRvBottomSheet.setLayoutManager(mGridLayoutManager);
+        mRvBottomSheet.setAdapter(mSheetHelper.getAdapter());
+
+        if(mSheetHelper.isPrewarmItems()){
+            mSheetHelper.getAdapter().prewarm(mRvBottomSheet, getScreenfulOfCells());
+        }
+
+        behavior.setBottomSheetCallback(SheetStateCallback);
+        behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
+    }
+
+    /**
+     * @return - roughly the cells covering the screen when the sheet is expanded
+     */
+    private int getScreenfulOfCells(){
+
+        // A cell is about twice the icon's height with its padding and label
+        int cellHeight = 2 * getResources().getDimensionPixelSize(R.dimen.bsh_icon_size);
+        int rows = (int) Math.ceil(getResources().getDisplayMetrics().heightPixels / (float) cellHeight);
+        return rows * mSheetHelper.getColumnCount();
+    }
+
+    /**
+     * @return - true if the sheet was inflated and is showing
+     */
+    private boolean isSheetShowing(){
+        return behavior != null && behavior.getState() != BottomSheetBehavior.STATE_HIDDEN;
+    }
+
+    @Override
+    protected void onDestroy() {
+
+        boolean retain = isChangingConfigurations() && mSheetHelper != null;
+        if(retain){
+            // The next instance picks up where this one stops
+            retainShareState();
+        }else{
+            // Stop the sheet's background work, nothing is delivered to a destroyed Activity
+            cancelShareFile();
+        }
+        Looper.myQueue().removeIdleHandler(SheetIdleInflater);
+
+        if(mRvBottomSheet != null){
+            // Recycles the visible holders so their icon loads stop, then drops them with the pool
+            mRvBottomSheet.setAdapter(null);
+            mRvBottomSheet.getRecycledViewPool().clear();
+        }
+
+        if(mSheetHelper != null){
+            if(!retain){
+                releaseSharedFiles();
+            }
+            mSheetHelper.release();
+        }
+
+        super.onDestroy();
+    }
+
+    /**
+     * Hands the share files, the request still preparing them, the sheet state and the running
+     * resolve to {@link #mShareState} for the instance recreated after the configuration change
+     */
+    private void retainShareState(){
+
+        if(Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "retaining the share state across a configuration change");
+        }
+
+        // Must join the resolve before the SheetHelper is released and leaves it unobserved
+        mShareState.holdTargets(mSheetHelper);
+
+        // Keeps running, its outcome is kept until the next instance takes the request over
+        mSheetHelper.keepPipes();
+        mShareState.retained = true;
+        mShareState.shareFileRequest = mShareFileRequest;
+        mShareState.shareRequested = mShareRequested;
+        mShareState.preparedFiles = mPreparedFiles;
+        mShareState.sharedFiles.addAll(mSharedFiles);
+        mShareState.bottomSheetItem = mBottomSheetItem;
+        mShareState.sheetState = behavior != null ? behavior.getState() : BottomSheetBehavior.STATE_HIDDEN;
+        mShareState.shareFileStore = mSheetHelper.peekShareFileStore();
+
+        mShareFileRequest = null;
+        mPreparedFiles = null;
+        mSharedFiles.clear();
+    }
+
+    /**
+     * Takes back the state retained by the instance this one replaces or saved before the process
+     * was killed, once the first SheetHelper is set
+     * @return - the BottomSheetBehavior state the sheet was in
+     */
+    private int restoreShareState(){
+
+        // The SheetHelper joined the resolve kept running for it when it was created
+        mShareState.releaseTargets();
+
+        int savedSheetState = mSavedSheetState;
+        ArrayList<BottomSheetItem> savedItems = mSavedItems;
+        mSavedSheetState = BottomSheetBehavior.STATE_HIDDEN;
+        mSavedItems = null;
+
+        if(!mShareState.retained){
+
+            // Recreated after the process was killed, show the saved items while the targets resolve again
+            if(savedItems != null){
+                mSheetHelper.restoreBottomSheetItems(savedItems);
+            }
+            return savedSheetState;
+        }
+
+        if(mShareState.shareFileStore != null){
+            mSheetHelper.adoptShareFileStore(mShareState.shareFileStore);
+        }
+
+        ShareFileRequest shareFileRequest = mShareState.shareFileRequest;
+        ArrayList<Uri> readyFiles = mShareState.readyFiles;
+        boolean shareFileFailed = mShareState.shareFileFailed;
+        mShareRequested = mShareState.shareRequested;
+        mPreparedFiles = mShareState.preparedFiles;
+        mSharedFiles.addAll(mShareState.sharedFiles);
+        mBottomSheetItem = mShareState.bottomSheetItem;
+        int sheetState = mShareState.sheetState;
+
+        mShareState.clear();
+
+        // Delivered here from now on, an outcome which arrived in between is delivered right away
+        mShareFileRequest = shareFileRequest;
+        if(readyFiles != null){
+            ShareFileCallback.onShareFileReady(shareFileRequest, readyFiles);
+        }else if(shareFileFailed){
+            ShareFileCallback.onShareFileFailed(shareFileRequest, false);
+        }
+        return sheetState;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
 
-        if(item.getItemId() == android.R.id.home && behavior.getState() != BottomSheetBehavior.STATE_HIDDEN){
+        if(item.getItemId() == android.R.id.home && isSheetShowing()){
             behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
             return true;
         }else {
@@ -125,7 +555,7 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
 
     @Override
     public void onBackPressed() {
-        if(behavior.getState() != BottomSheetBehavior.STATE_HIDDEN){
+        if(isSheetShowing()){
             behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
         }else{
             super.onBackPressed();
@@ -144,8 +574,7 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
                     // file-related task you need to do.
 
                     // Save the bitmap to storage
-                    Uri fileToShare = createShareFile();
-                    setupShareIntent(mBottomSheetItem, fileToShare);
+                    prepareShareFile();
 
                 } else {
 
@@ -169,17 +598,20 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
         // Store off the item to share
         mBottomSheetItem = bottomSheetItem;
 
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M){
+        // Ranks the target higher next time
+        mSheetHelper.recordShareTarget(bottomSheetItem);
+
+        if(mSheetHelper.getFileType() == FileType.TEXT){
+
+            // Text goes in the Intent itself, no file and no permission
+            shareText();
+
+        }else if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && requiresStoragePermission()){
 
             requestPermission();
         }else{
             // Save the file to storage
-            Uri contentUri = createShareFile();
-
-            boolean success = setupShareIntent(mBottomSheetItem, contentUri);
-            if(success) {
-                behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
-            }
+            prepareShareFile();
         }
     }
 
@@ -194,18 +626,34 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
             throw new IllegalArgumentException("The ShareSheet helper cannot be null");
         }
 
-        this.mSheetHelper = sheetHelper;
+        if(mSheetHelper != null && mSheetHelper != sheetHelper){
+            releaseSharedFiles();
+            mSheetHelper.release();
+        }
 
-        mRlBottomSheet.setBackgroundColor(mSheetHelper.getBackgroundColor());
-        mBsTitle.setTextColor(mSheetHelper.getTitleColor());
+        this.mSheetHelper = sheetHelper;
+        mShareState.setProducer(ShareFileProducer);
 
-        // sets up the layout manager using the Sheet Helper
-        mGridLayoutManager = new GridLayoutManager(this, mSheetHelper.getColumnCount());
-        mRvBottomSheet.setLayoutManager(mGridLayoutManager);
-        mRvBottomSheet.setAdapter(mSheetHelper.getAdapter());
+        int sheetState = restoreShareState();
 
-        behavior.setBottomSheetCallback(sheetHelper.getBottomSheetCallback());
-        behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
+        if(sheetState != BottomSheetBehavior.STATE_HIDDEN){
+            // Showing before the configuration change, show it again right away without animating
+            if(mRlBottomSheet != null){
+                bindSheet();
+            }else{
+                inflateSheet();
+            }
+            mRlBottomSheet.setVisibility(View.VISIBLE);
+            behavior.setState(sheetState == BottomSheetBehavior.STATE_EXPANDED
+                    ? BottomSheetBehavior.STATE_EXPANDED : BottomSheetBehavior.STATE_COLLAPSED);
+
+        }else if(mRlBottomSheet != null){
+            bindSheet();
+        }else if(mSheetHelper.isInflateSheetWhenIdle()){
+            // Inflate once the first frame is drawn and the main thread has nothing else to do
+            Looper.myQueue().removeIdleHandler(SheetIdleInflater);
+            Looper.myQueue().addIdleHandler(SheetIdleInflater);
+        }
     }
 
     /**
@@ -221,11 +669,15 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
             Log.d(TAG, "called to showShareSheet....");
         }
 
+        inflateSheet();
+
         if(behavior.getState() == BottomSheetBehavior.STATE_HIDDEN || behavior.getState() == BottomSheetBehavior.STATE_COLLAPSED) {
             final Animation animation = AnimationUtils.loadAnimation(ShareActivity.this, R.anim.bottom_slide_up);
             animation.setAnimationListener(new Animation.AnimationListener() {
                 @Override
-                public void onAnimationStart(Animation animation) {}
+                public void onAnimationStart(Animation animation) {
+                    prepareShareFileSpeculatively();
+                }
 
                 @Override
                 public void onAnimationEnd(Animation animation) {
@@ -276,16 +728,157 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
         }else{
 
             // Save the bitmap to storage
-            Uri fileToShare = createShareFile();
+            prepareShareFile();
+        }
 
-            boolean success = setupShareIntent(mBottomSheetItem, fileToShare);
-            if(success) {
-                behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
-            }
+    }
+
+    /**
+     * Shares to the chosen target once the file is ready, reusing a speculatively prepared file
+     * or one still being prepared
+     */
+    private void prepareShareFile(){
+
+        mShareRequested = true;
+
+        if(mPreparedFiles != null){
+            ArrayList<Uri> filesToShare = mPreparedFiles;
+            mPreparedFiles = null;
+            shareFiles(filesToShare);
+
+        }else if(mShareFileRequest == null){
+            startShareFile();
         }
+    }
+
+    /**
+     * Starts preparing the file as the sheet opens, before a target is chosen, when the
+     * {@link SheetHelper} opted in and no permission prompt stands in the way
+     */
+    private void prepareShareFileSpeculatively(){
 
+        if(!mSheetHelper.isSpeculativeShareFile() || mSheetHelper.getFileType() == FileType.TEXT
+                || mShareFileRequest != null || mPreparedFiles != null){
+            return;
+        }
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && requiresStoragePermission() && ContextCompat.checkSelfPermission(this,
+                Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED){
+            return;
+        }
+
+        if(Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "speculatively preparing the share file");
+        }
+
+        mShareRequested = false;
+        startShareFile();
+    }
+
+    /**
+     * Starts preparing the file to share off the main thread
+     */
+    private void startShareFile(){
+
+        // Produced and delivered through the retained Fragment, so the request outlives this instance
+        mShareFileRequest = new ShareFileRequest(mShareState, mShareState, mSheetHelper.getBackgroundExecutor(),
+                mSheetHelper.getMainExecutor(), mSheetHelper.getShareFileTimeout());
+        mShareFileRequest.start();
+    }
+
+    /**
+     * Sets up the Intent for the chosen target
+     * @param filesToShare - the ready files
+     */
+    private void shareFiles(ArrayList<Uri> filesToShare){
+
+        mShareRequested = false;
+
+        // Keep the pins taken when the files were ready until this Activity is gone
+        mSharedFiles.addAll(filesToShare);
+        // Streamed ones stay registered after the sheet is released, the target may read them later
+        mSheetHelper.keepPipes(filesToShare);
+
+        boolean success = setupShareIntent(mBottomSheetItem, filesToShare);
+        if(success) {
+            behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
+        }
     }
 
+    /**
+     * Shares {@link #createShareText()} to the chosen target
+     */
+    private void shareText(){
+
+        CharSequence text = createShareText();
+        if(text == null){
+            Toast.makeText(ShareActivity.this, getString(R.string.share_file_failed), Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        boolean success = setupShareText(mBottomSheetItem, text);
+        if(success) {
+            behavior.setState(BottomSheetBehavior.STATE_HIDDEN);
+        }
+    }
+
+    /**
+     * Cancels the share files being prepared, if any, and discards prepared files no target was chosen for
+     */
+    private void cancelShareFile(){
+
+        if(mShareFileRequest != null){
+            mShareFileRequest.cancel(!mShareRequested);
+            mShareFileRequest = null;
+        }
+
+        if(mPreparedFiles != null){
+            discardShareFiles(mPreparedFiles);
+            mPreparedFiles = null;
+        }
+
+        mShareRequested = false;
+    }
+
+    /**
+     * Releases speculatively prepared files which were never shared. Streamed payloads are
+     * unregistered. Only the store deletes files, and only its own: a file which did not come
+     * from the store, such as an existing file shared without a copy, is left where it is
+     * @param filesToShare - the unused files
+     */
+    private void discardShareFiles(ArrayList<Uri> filesToShare){
+
+        for(Uri fileToShare : filesToShare){
+            SharePipeProvider.unregister(fileToShare);
+        }
+
+        // Files in the content addressed store are kept for the next identical share
+        ShareFileStore shareFileStore = mSheetHelper != null ? mSheetHelper.peekShareFileStore() : null;
+        if(shareFileStore == null){
+            return;
+        }
+
+        for(Uri fileToShare : filesToShare){
+            shareFileStore.unpin(fileToShare);
+        }
+    }
+
+    /**
+     * Unpins the files shared from this Activity, the store may sweep them once they are no
+     * longer recently shared
+     */
+    private void releaseSharedFiles(){
+
+        ShareFileStore shareFileStore = mSheetHelper.peekShareFileStore();
+        if(shareFileStore != null){
+            for(Uri fileToShare : mSharedFiles){
+                shareFileStore.unpin(fileToShare);
+            }
+        }
+        mSharedFiles.clear();
+    }
+
+
     /**
      * Presents the dialog to the user telling what the permission is
      */
@@ -315,23 +908,137 @@ public abstract class ShareActivity extends AppCompatActivity implements BottomS
                 }).build().show();
     }
 
-    private final RecyclerView.OnScrollListener ScrollChangeListener = new RecyclerView.OnScrollListener() {
+    /**
+     * Empties the search field and hides the keyboard, the next time the sheet shows every target
+     */
+    private void clearSearch(){
+
+        if(mEtSearch == null || mEtSearch.getVisibility() != View.VISIBLE){
+            return;
+        }
+
+        if(mEtSearch.length() > 0){
+            mEtSearch.setText(null);
+        }
+
+        if(mEtSearch.hasFocus()){
+            InputMethodManager inputMethodManager = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
+            inputMethodManager.hideSoftInputFromWindow(mEtSearch.getWindowToken(), 0);
+            mEtSearch.clearFocus();
+        }
+    }
+
+    /**
+     * Filters the targets on each keystroke
+     */
+    private final TextWatcher SearchWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            if(mSheetHelper != null){
+                mSheetHelper.setQuery(s);
+            }
+        }
+    };
+
+    /**
+     * Inflates the sheet ahead of the first {@link #showShareSheet()} when the main thread is idle
+     */
+    private final MessageQueue.IdleHandler SheetIdleInflater = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if(!isFinishing()){
+                inflateSheet();
+            }
+            return false;
+        }
+    };
+
+    private final ShareFileRequest.Producer ShareFileProducer = new ShareFileRequest.Producer() {
         @Override
-        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
-            super.onScrolled(recyclerView, dx, dy);
-            if(dy > 0 && mFlShadow.getVisibility() == View.INVISIBLE){
-                mFlShadow.setAlpha(0f);
-                mFlShadow.setVisibility(View.VISIBLE);
-                mFlShadow.animate().setDuration(100L).alpha(1f).setListener(null);
-
-            }else if(mGridLayoutManager.findFirstVisibleItemPosition() == 0){
-                mFlShadow.animate().setDuration(100L).alpha(0f).setListener(
-                        new AnimatorListenerAdapter() {
-                            @Override
-                            public void onAnimationEnd(Animator animation) {
-                                mFlShadow.setVisibility(View.INVISIBLE);
-                            }
-                        });
+        public ArrayList<Uri> createShareFiles(ShareFileRequest request) {
+            return ShareActivity.this.createShareFiles(request);
+        }
+    };
+
+    private final ShareFileRequest.Callback ShareFileCallback = new ShareFileRequest.Callback() {
+        @Override
+        public void onShareFileProgress(ShareFileRequest request, int progress) {
+            ShareActivity.this.onShareFileProgress(progress);
+        }
+
+        @Override
+        public void onShareFileReady(ShareFileRequest request, ArrayList<Uri> filesToShare) {
+
+            mShareFileRequest = null;
+
+            // Protect the files from the store's sweep until they are shared or discarded
+            ShareFileStore shareFileStore = mSheetHelper.peekShareFileStore();
+            if(shareFileStore != null){
+                for(Uri fileToShare : filesToShare){
+                    shareFileStore.pin(fileToShare);
+                }
+            }
+
+            if(mShareRequested){
+                shareFiles(filesToShare);
+            }else{
+                // Prepared speculatively, keep them until a target is chosen
+                mPreparedFiles = filesToShare;
+            }
+        }
+
+        @Override
+        public void onShareFileFailed(ShareFileRequest request, boolean timedOut) {
+
+            mShareFileRequest = null;
+
+            // A failed speculative file is prepared again once a target is chosen
+            if(mShareRequested){
+                mShareRequested = false;
+                Toast.makeText(ShareActivity.this, getString(R.string.share_file_failed), Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public void onShareFileDiscarded(ShareFileRequest request, ArrayList<Uri> filesToShare) {
+            discardShareFiles(filesToShare);
+        }
+    };
+
+    /**
+     * Forwards sheet state changes to the {@link SheetHelper}'s callback, discarding a
+     * speculatively prepared file when the sheet is hidden without choosing a target
+     */
+    private final BottomSheetBehavior.BottomSheetCallback SheetStateCallback = new BottomSheetBehavior.BottomSheetCallback() {
+        @Override
+        public void onStateChanged(@NonNull View bottomSheet, int newState) {
+
+            if(newState == BottomSheetBehavior.STATE_HIDDEN && !mShareRequested){
+                cancelShareFile();
+            }
+
+            if(newState == BottomSheetBehavior.STATE_HIDDEN){
+                clearSearch();
+            }
+
+            BottomSheetBehavior.BottomSheetCallback callback = mSheetHelper != null ? mSheetHelper.getBottomSheetCallback() : null;
+            if(callback != null){
+                callback.onStateChanged(bottomSheet, newState);
+            }
+        }
+
+        @Override
+        public void onSlide(@NonNull View bottomSheet, float slideOffset) {
+
+            BottomSheetBehavior.BottomSheetCallback callback = mSheetHelper != null ? mSheetHelper.getBottomSheetCallback() : null;
+            if(callback != null){
+                callback.onSlide(bottomSheet, slideOffset);
             }
         }
     };
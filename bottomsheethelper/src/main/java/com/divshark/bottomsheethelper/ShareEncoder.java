@@ -0,0 +1,38 @@
+package com.divshark.bottomsheethelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a payload of a {@link FileType} into a share file written by the {@link ShareFileStore}
+ * @param <T> - the payload type
+ */
+public interface ShareEncoder<T> {
+
+    /**
+     * @return - the FileType this encoder writes
+     */
+    FileType getFileType();
+
+    /**
+     * @param payload - the payload
+     * @return - a key identifying the payload and every encode setting, equal keys must encode
+     * to equal files
+     */
+    String getContentKey(T payload);
+
+    /**
+     * @param payload - the payload
+     * @return - roughly the bytes of memory encoding the payload takes, parallel encodes are
+     * throttled to fit a shared memory budget
+     */
+    long estimateMemory(T payload);
+
+    /**
+     * Writes the encoded payload
+     * @param payload - the payload
+     * @param out - the buffered stream of the share file
+     * @throws IOException - if the payload could not be encoded or written
+     */
+    void encode(T payload, OutputStream out) throws IOException;
+}
@@ -0,0 +1,221 @@
+package com.divshark.bottomsheethelper;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * One preparation of the share files off the main thread, a single file for Intent.ACTION_SEND
+ * or several for Intent.ACTION_SEND_MULTIPLE.
+ *
+ * The files are produced on the background Executor, progress and the result are delivered on the
+ * main thread Executor. A request can be cancelled at any time and is cancelled automatically
+ * when it goes longer than its timeout without reporting progress, so a large file copied at a
+ * steady pace is never abandoned while a stuck one is. Implementations producing the file should
+ * check {@link #isCancelled()} between expensive steps and report {@link #publishProgress(int)}.
+ */
+public final class ShareFileRequest {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = ShareFileRequest.class.getSimpleName();
+
+    /**
+     * Produces the files on the background thread
+     */
+    interface Producer {
+
+        ArrayList<Uri> createShareFiles(ShareFileRequest request);
+    }
+
+    /**
+     * Receives the outcome of a request on the main thread, exactly one of
+     * {@link #onShareFileReady(ShareFileRequest, ArrayList)} and
+     * {@link #onShareFileFailed(ShareFileRequest, boolean)} is called unless the request is cancelled
+     */
+    interface Callback {
+
+        void onShareFileProgress(ShareFileRequest request, int progress);
+
+        void onShareFileReady(ShareFileRequest request, ArrayList<Uri> filesToShare);
+
+        void onShareFileFailed(ShareFileRequest request, boolean timedOut);
+
+        /**
+         * Called with the files which were produced after the request was cancelled with
+         * {@link #cancel(boolean)} asking for the files to be discarded
+         */
+        void onShareFileDiscarded(ShareFileRequest request, ArrayList<Uri> filesToShare);
+    }
+
+    private static final Handler sTimeoutHandler = new Handler(Looper.getMainLooper());
+
+    private final Producer producer;
+    private final Callback callback;
+    private final Executor backgroundExecutor;
+    private final Executor mainExecutor;
+    private final long timeoutMillis;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Set on the main thread when a file produced after cancelling should be handed back to discard
+     */
+    private boolean discard;
+
+    /**
+     * Set on the main thread once the outcome was delivered or the request was cancelled
+     */
+    private boolean finished;
+
+    /**
+     * The last progress delivered on the main thread, only an advance restarts the timeout
+     */
+    private int progress = -1;
+
+    ShareFileRequest(Producer producer, Callback callback, Executor backgroundExecutor,
+                     Executor mainExecutor, long timeoutMillis){
+        this.producer = producer;
+        this.callback = callback;
+        this.backgroundExecutor = backgroundExecutor;
+        this.mainExecutor = mainExecutor;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return - true once the request was cancelled or timed out, stop producing the file
+     */
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    /**
+     * Reports progress from the background thread
+     * @param progress - the progress from 0 to 100
+     */
+    public void publishProgress(final int progress){
+
+        if(cancelled){
+            return;
+        }
+
+        mainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!finished){
+                    if(progress > ShareFileRequest.this.progress){
+                        ShareFileRequest.this.progress = progress;
+                        scheduleTimeout();
+                    }
+                    callback.onShareFileProgress(ShareFileRequest.this, progress);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts producing the file, must be called on the main thread
+     */
+    void start(){
+
+        scheduleTimeout();
+
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                if(cancelled){
+                    return;
+                }
+
+                ArrayList<Uri> filesToShare = null;
+                try {
+                    filesToShare = producer.createShareFiles(ShareFileRequest.this);
+                } catch (RuntimeException ex) {
+
+                    if(Log.isLoggable(TAG, Log.ERROR)){
+                        Log.e(TAG, "Failed to create the share file", ex);
+                    }
+                }
+
+                final ArrayList<Uri> result = filesToShare != null && !filesToShare.isEmpty() ? filesToShare : null;
+                mainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the request, nothing more is delivered, must be called on the main thread
+     */
+    void cancel(){
+        cancel(false);
+    }
+
+    /**
+     * Cancels the request, must be called on the main thread
+     * @param discard - true to have files still produced handed to
+     *                {@link Callback#onShareFileDiscarded(ShareFileRequest, ArrayList)}
+     */
+    void cancel(boolean discard){
+        this.discard = discard;
+        cancelled = true;
+        finished = true;
+        sTimeoutHandler.removeCallbacks(timeout);
+    }
+
+    /**
+     * Starts the timeout over, on start and whenever the progress advances
+     */
+    private void scheduleTimeout(){
+
+        if(timeoutMillis > 0){
+            sTimeoutHandler.removeCallbacks(timeout);
+            sTimeoutHandler.postDelayed(timeout, timeoutMillis);
+        }
+    }
+
+    private void finish(ArrayList<Uri> filesToShare){
+
+        if(finished){
+            if(discard && filesToShare != null){
+                callback.onShareFileDiscarded(this, filesToShare);
+            }
+            return;
+        }
+        finished = true;
+        sTimeoutHandler.removeCallbacks(timeout);
+
+        if(filesToShare != null){
+            callback.onShareFileReady(this, filesToShare);
+        }else{
+            callback.onShareFileFailed(this, false);
+        }
+    }
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+
+            if(finished){
+                return;
+            }
+
+            if(Log.isLoggable(TAG, Log.WARN)){
+                Log.w(TAG, "Share file made no progress for " + timeoutMillis + "ms, giving up");
+            }
+
+            cancel();
+            callback.onShareFileFailed(ShareFileRequest.this, true);
+        }
+    };
+}
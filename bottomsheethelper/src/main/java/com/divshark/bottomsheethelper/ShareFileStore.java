@@ -0,0 +1,560 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.support.v4.content.FileProvider;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed store for share files in a share/ subdirectory of the {@link SheetHelper}'s
+ * directory, or of files/bottomsheethelper when it has none.
+ *
+ * Files are named after a hash of the payload and its encode parameters, sharing identical
+ * content again returns the existing {@link FileProvider} Uri without encoding or writing
+ * anything. Obtained from {@link SheetHelper#getShareFileStore()}, safe to use from any thread.
+ *
+ * The directory is bounded by size and age. A file's modified time is its last share time,
+ * a background sweep deletes files past the age limit and then the least recently shared ones
+ * until the directory fits its size limit. Only files named the way the store names them are
+ * ever swept. Pinned files and files shared in the last few minutes are never deleted, the
+ * receiving app may still be reading them.
+ */
+public final class ShareFileStore {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = ShareFileStore.class.getSimpleName();
+
+    /**
+     * Directory under {@link Context#getFilesDir()} holding the store when none is configured
+     */
+    private static final String DEFAULT_DIRECTORY = "bottomsheethelper";
+
+    /**
+     * Subdirectory of the configured directory holding the store, so the sweep never sees the
+     * app's own files
+     */
+    private static final String STORE_DIRECTORY = "share";
+
+    /**
+     * Names of the files the store writes, the hash of their key and an extension, optionally
+     * followed by the suffix of a temporary file left behind by a killed process
+     */
+    private static final Pattern STORE_FILE_NAME = Pattern.compile("[0-9a-f]{40}(\\..*)?");
+
+    /**
+     * Size of the write buffer, encoders write in small chunks
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Bytes copied between progress reports and cancellation checks
+     */
+    private static final long COPY_CHUNK_SIZE = 8 * 1024 * 1024L;
+
+    /**
+     * Time after its last share a file is kept regardless of the limits, receiving apps read
+     * the file some time after the share Intent was sent
+     */
+    private static final long RECENT_SHARE_MILLIS = 5 * 60 * 1000L;
+
+    /**
+     * Oldest share first
+     */
+    private static final Comparator<File> LAST_SHARED_ORDER = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            long lhsShared = lhs.lastModified();
+            long rhsShared = rhs.lastModified();
+            return lhsShared < rhsShared ? -1 : (lhsShared == rhsShared ? 0 : 1);
+        }
+    };
+
+    /**
+     * Writes a payload into a new share file
+     */
+    public interface Writer {
+
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final Context context;
+
+    private final File directory;
+
+    private final String authority;
+
+    private final String fileExtension;
+
+    /**
+     * Most bytes kept in the directory, 0 for no limit
+     */
+    private final long maxBytes;
+
+    /**
+     * Longest time a file is kept after its last share, 0 for no limit
+     */
+    private final long maxAgeMillis;
+
+    /**
+     * Executor the sweeps run on
+     */
+    private final Executor executor;
+
+    /**
+     * true while a sweep is queued and has not started yet
+     */
+    private final AtomicBoolean sweepPending = new AtomicBoolean();
+
+    /**
+     * Pin counts of the files which must not be swept
+     */
+    private final Map<File, Integer> pins = new HashMap<>();
+
+    ShareFileStore(Context context, String directory, String fileProvider, String fileExtension,
+                   long maxBytes, long maxAgeMillis, Executor executor){
+        this.context = context.getApplicationContext();
+        this.directory = storeDirectory(this.context, directory);
+        this.authority = this.context.getPackageName() + fileProvider;
+        this.fileExtension = fileExtension != null ? fileExtension : "";
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.executor = executor;
+
+        // Clean up whatever earlier sessions left behind
+        scheduleSweep();
+    }
+
+    /**
+     * @return - true if the store was created with the same settings, see the constructor
+     */
+    boolean isFor(Context context, String directory, String fileProvider, String fileExtension,
+                  long maxBytes, long maxAgeMillis){
+
+        return this.directory.equals(storeDirectory(context.getApplicationContext(), directory))
+                && authority.equals(context.getApplicationContext().getPackageName() + fileProvider)
+                && this.fileExtension.equals(fileExtension != null ? fileExtension : "")
+                && this.maxBytes == maxBytes && this.maxAgeMillis == maxAgeMillis;
+    }
+
+    /**
+     * @return - the directory of the store for the configured directory, see {@link #STORE_DIRECTORY}
+     */
+    private static File storeDirectory(Context context, String directory){
+        File parent = new File(context.getFilesDir(), directory != null ? directory : DEFAULT_DIRECTORY);
+        return new File(parent, STORE_DIRECTORY);
+    }
+
+    /**
+     * @return - true if the file is in the store's directory and named the way the store names files
+     */
+    private boolean isStoreFile(File file){
+        return directory.equals(file.getParentFile()) && STORE_FILE_NAME.matcher(file.getName()).matches();
+    }
+
+    /**
+     * Returns the share file for the key, writing it only when no file exists for the key yet
+     * @param contentKey - a key identifying the payload and how it is encoded, for example a content hash
+     * @param writer - writes the payload when there is no file for the key
+     * @return - the FileProvider Uri for the file
+     * @throws IOException - if the file could not be written
+     */
+    public Uri obtain(String contentKey, Writer writer) throws IOException {
+        return obtain(contentKey, fileExtension, writer);
+    }
+
+    private Uri obtain(String contentKey, String extension, Writer writer) throws IOException {
+
+        File file = new File(directory, Digests.sha1Hex(contentKey) + extension);
+
+        Uri reused = reuse(file);
+        if(reused != null){
+
+            if(Log.isLoggable(TAG, Log.DEBUG)){
+                Log.d(TAG, "reusing share file " + file.getName());
+            }
+            return reused;
+        }
+
+        // Write to a temporary file first so a reader never sees a partial file
+        File temp = createTemp(file);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+        try {
+            writer.write(out);
+            out.close();
+            out = null;
+
+            moveIntoPlace(temp, file);
+        } finally {
+            TargetArtifactCache.closeQuietly(out);
+            deleteTemp(temp);
+        }
+
+        Uri uri = issue(file);
+        scheduleSweep();
+        return uri;
+    }
+
+    /**
+     * Shares a file which already exists. A file under one of the provider's paths is exposed
+     * as it is with no copy, it is not recorded as one of the store's files so it is never swept
+     * or deleted, even when it is in the store's directory. Any other file is
+     * copied into the share directory once, channel to channel, and the copy is reused while
+     * the file is unchanged
+     * @param source - the existing file
+     * @param request - the request reporting copy progress and cancellation, may be null
+     * @return - the FileProvider Uri for the file or its copy
+     * @throws IOException - if the file could not be copied or the request was cancelled
+     */
+    public Uri share(File source, ShareFileRequest request) throws IOException {
+
+        if(!source.isFile()){
+            throw new IOException("No file to share at " + source);
+        }
+
+        if(isStoreFile(source)){
+
+            // Already one of the store's files, shared again like any other
+            Uri reused = reuse(source);
+            if(reused == null){
+                throw new IOException("No file to share at " + source);
+            }
+            return reused;
+        }
+
+        try {
+            return FileProvider.getUriForFile(context, authority, source);
+
+        } catch (IllegalArgumentException ex) {
+
+            // Not under a path the provider serves, for example on another volume
+            if(Log.isLoggable(TAG, Log.DEBUG)){
+                Log.d(TAG, source + " is outside the provider's paths, copying it");
+            }
+        }
+
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        String contentKey = source.getAbsolutePath() + ':' + source.length() + ':' + source.lastModified();
+        File file = new File(directory, Digests.sha1Hex(contentKey) + (dot >= 0 ? name.substring(dot) : fileExtension));
+
+        Uri reused = reuse(file);
+        if(reused != null){
+            return reused;
+        }
+
+        File temp = createTemp(file);
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(temp);
+            copy(in.getChannel(), out.getChannel(), request);
+            out.close();
+            out = null;
+
+            moveIntoPlace(temp, file);
+        } finally {
+            TargetArtifactCache.closeQuietly(in);
+            TargetArtifactCache.closeQuietly(out);
+            deleteTemp(temp);
+        }
+
+        Uri uri = issue(file);
+        scheduleSweep();
+        return uri;
+    }
+
+    /**
+     * Copies with transferTo a chunk at a time, the kernel moves the bytes without them
+     * passing through the Java heap
+     */
+    private static void copy(FileChannel source, FileChannel target, ShareFileRequest request) throws IOException {
+
+        long size = source.size();
+        long position = 0;
+        while(position < size){
+
+            if(request != null && request.isCancelled()){
+                throw new InterruptedIOException("Share cancelled");
+            }
+
+            long transferred = source.transferTo(position, Math.min(COPY_CHUNK_SIZE, size - position), target);
+            if(transferred <= 0){
+                throw new IOException("Copy stopped at " + position + " of " + size + " bytes");
+            }
+            position += transferred;
+
+            if(request != null){
+                request.publishProgress((int) (position * 100 / size));
+            }
+        }
+    }
+
+    private File createTemp(File file) throws IOException {
+
+        if(!directory.mkdirs() && !directory.exists()){
+            throw new IOException("Unable to create " + directory);
+        }
+        return new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    private static void moveIntoPlace(File temp, File file) throws IOException {
+
+        if(!temp.renameTo(file)){
+            throw new IOException("Unable to move " + file.getName() + " into place");
+        }
+    }
+
+    private static void deleteTemp(File temp){
+
+        if(temp.exists() && !temp.delete() && Log.isLoggable(TAG, Log.WARN)){
+            Log.w(TAG, "Unable to delete " + temp);
+        }
+    }
+
+    /**
+     * Returns the share file for a payload, encoding it only when an equal payload was not
+     * already encoded with the same settings. The file is named with the extension of what the
+     * encoder writes, see {@link #fileExtensionOf(ShareEncoder, String)}
+     * @param payload - the payload to share
+     * @param encoder - the encoder for the payload
+     * @param <T> - the payload type
+     * @return - the FileProvider Uri for the file
+     * @throws IOException - if the file could not be written
+     */
+    public <T> Uri obtain(final T payload, final ShareEncoder<T> encoder) throws IOException {
+
+        return obtain(encoder.getContentKey(payload), fileExtensionOf(encoder, fileExtension), new Writer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                encoder.encode(payload, out);
+            }
+        });
+    }
+
+    /**
+     * @param encoder - the encoder writing the file
+     * @param fallback - the extension used when neither the encoder nor its FileType decide it
+     * @return - the extension of the files the encoder writes
+     */
+    static String fileExtensionOf(ShareEncoder<?> encoder, String fallback){
+
+        if(encoder instanceof BitmapEncoder){
+            return ((BitmapEncoder) encoder).getFileExtension();
+        }
+        String fileExtension = encoder.getFileType().getFileExtension();
+        if(fileExtension != null){
+            return fileExtension;
+        }
+        return fallback != null ? fallback : "";
+    }
+
+    /**
+     * Returns the share file for a Bitmap, encoding it only when the same pixels were not
+     * already encoded with the same format and quality
+     * @param bitmap - the Bitmap to share
+     * @param format - the format to encode with
+     * @param quality - the quality to encode with
+     * @return - the FileProvider Uri for the file
+     * @throws IOException - if the file could not be written
+     */
+    public Uri obtain(Bitmap bitmap, Bitmap.CompressFormat format, int quality) throws IOException {
+        return obtain(bitmap, new BitmapEncoder(format, quality, 0));
+    }
+
+    /**
+     * @param uri - a Uri
+     * @return - true if the Uri points to one of the store's files, whichever store instance or
+     * process handed it out
+     */
+    public boolean contains(Uri uri){
+        return fileFor(uri) != null;
+    }
+
+    /**
+     * Maps a Uri back to the store's file by its name, so nothing is kept per issued Uri
+     * @return - the file of the store the Uri points to, null for any other Uri
+     */
+    private File fileFor(Uri uri){
+
+        String name = uri.getLastPathSegment();
+        if(!authority.equals(uri.getAuthority()) || name == null || !STORE_FILE_NAME.matcher(name).matches()){
+            return null;
+        }
+
+        File file = new File(directory, name);
+        try {
+            return uri.equals(FileProvider.getUriForFile(context, authority, file)) ? file : null;
+        } catch (IllegalArgumentException ex) {
+            // The provider does not serve the store's directory, the Uri cannot be one of its files
+            return null;
+        }
+    }
+
+    /**
+     * Keeps a file from being swept until it is unpinned, for as long as a share may read it
+     * @param uri - a Uri from this store, other Uris are ignored
+     */
+    synchronized void pin(Uri uri){
+
+        File file = fileFor(uri);
+        if(file != null){
+            Integer count = pins.get(file);
+            pins.put(file, count != null ? count + 1 : 1);
+        }
+    }
+
+    /**
+     * Releases a pin taken with {@link #pin(Uri)}, the file's last share time is refreshed so
+     * it is still protected while the receiver finishes reading it
+     * @param uri - the pinned Uri
+     */
+    synchronized void unpin(Uri uri){
+
+        File file = fileFor(uri);
+        Integer count = file != null ? pins.get(file) : null;
+        if(count == null){
+            return;
+        }
+
+        if(count > 1){
+            pins.put(file, count - 1);
+        }else{
+            pins.remove(file);
+            touch(file);
+        }
+    }
+
+    /**
+     * Queues a sweep on the background Executor unless one is already queued
+     */
+    private void scheduleSweep(){
+
+        if((maxBytes > 0 || maxAgeMillis > 0) && sweepPending.compareAndSet(false, true)){
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sweepPending.set(false);
+                    sweep();
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes the files past the age limit, then the least recently shared files until the
+     * directory fits the size limit, skipping pinned and recently shared files and any file
+     * the store did not write
+     */
+    private void sweep(){
+
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return isStoreFile(file);
+            }
+        });
+        if(files == null){
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for(File file : files){
+            totalBytes += file.length();
+        }
+
+        Arrays.sort(files, LAST_SHARED_ORDER);
+
+        int deleted = 0;
+        long deletedBytes = 0;
+        for(File file : files){
+
+            long age = now - file.lastModified();
+            boolean expired = maxAgeMillis > 0 && age > maxAgeMillis;
+            boolean overSize = maxBytes > 0 && totalBytes > maxBytes;
+            if(!expired && !overSize){
+                // Sorted oldest first, nothing newer is expired either
+                break;
+            }
+
+            if(age < RECENT_SHARE_MILLIS || !file.isFile()){
+                continue;
+            }
+
+            long length = file.length();
+            if(delete(file)){
+                totalBytes -= length;
+                deletedBytes += length;
+                deleted++;
+            }
+        }
+
+        if(deleted > 0 && Log.isLoggable(TAG, Log.DEBUG)){
+            Log.d(TAG, "swept " + deleted + " share files, " + deletedBytes + " bytes");
+        }
+    }
+
+    /**
+     * Deletes a file the sweep picked unless it was pinned or shared again since, checked under
+     * the same lock {@link #reuse(File)} touches the file with
+     */
+    private synchronized boolean delete(File file){
+
+        if(pins.containsKey(file) || !isStoreFile(file)
+                || System.currentTimeMillis() - file.lastModified() < RECENT_SHARE_MILLIS){
+            return false;
+        }
+
+        if(!file.delete()){
+            if(Log.isLoggable(TAG, Log.WARN)){
+                Log.w(TAG, "Unable to delete " + file);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Issues an existing file again, checked and touched in one step so a sweep cannot delete it in between
+     * @return - the Uri, null if there is no file and it must be written
+     */
+    private synchronized Uri reuse(File file){
+        return file.exists() ? issue(file) : null;
+    }
+
+    private synchronized Uri issue(File file){
+
+        // The modified time doubles as the last share time the sweep orders by
+        touch(file);
+
+        return FileProvider.getUriForFile(context, authority, file);
+    }
+
+    private static void touch(File file){
+
+        if(!file.setLastModified(System.currentTimeMillis()) && Log.isLoggable(TAG, Log.DEBUG)){
+            Log.d(TAG, "Unable to update the last share time of " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves share payloads without writing them to disk first.
+ *
+ * A payload is registered with its {@link ShareEncoder} and handed out as a content Uri. When
+ * the receiving app opens the Uri the payload is encoded straight into the write end of a pipe
+ * while the receiver reads the other end, so nothing is written to storage and the receiver can
+ * start reading as soon as the first bytes are encoded.
+ *
+ * The pipe is not seekable and its size is unknown up front, use it only for receivers which
+ * read the stream front to back. Payloads live in memory for this process, the most recent
+ * {@link #MAX_PAYLOADS} stay registered. A payload is held strongly only until it was streamed
+ * in full once, after that a receiver opening it again gets it only while the app still holds it.
+ */
+public class SharePipeProvider extends ContentProvider {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = SharePipeProvider.class.getSimpleName();
+
+    /**
+     * Appended to the package name to form the authority declared in the library manifest
+     */
+    private static final String AUTHORITY_SUFFIX = ".bottomsheethelper.pipe";
+
+    /**
+     * Payloads kept registered, receivers may open a Uri more than once
+     */
+    private static final int MAX_PAYLOADS = 8;
+
+    private static final String[] COLUMNS = { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+
+    /**
+     * Registered payloads by token, least recently opened first
+     */
+    private static final Map<String, Payload<?>> sPayloads = new LinkedHashMap<String, Payload<?>>(MAX_PAYLOADS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Payload<?>> eldest) {
+            return size() > MAX_PAYLOADS;
+        }
+    };
+
+    /**
+     * Registers a payload to be encoded when the receiver opens the returned Uri
+     * @param context - a Context
+     * @param payload - the payload, it must not change until the share is done
+     * @param encoder - the encoder for the payload
+     * @param mimeType - the MIME type reported for the Uri
+     * @param displayName - the file name reported for the Uri
+     * @param <T> - the payload type
+     * @return - the content Uri to put in the share Intent with read permission granted
+     */
+    public static <T> Uri register(Context context, T payload, ShareEncoder<T> encoder, String mimeType, String displayName){
+        return register(context, payload, encoder, mimeType, displayName, SheetExecutors.pipeWriter());
+    }
+
+    /**
+     * Registers a payload to be encoded on the given Executor when the receiver opens the returned Uri
+     * @param context - a Context
+     * @param payload - the payload, it must not change until the share is done
+     * @param encoder - the encoder for the payload
+     * @param mimeType - the MIME type reported for the Uri
+     * @param displayName - the file name reported for the Uri
+     * @param executor - the Executor writing the pipe, a writer blocks until the receiver has read
+     *                 everything so it needs a thread for each pipe open at once
+     * @param <T> - the payload type
+     * @return - the content Uri to put in the share Intent with read permission granted
+     */
+    public static <T> Uri register(Context context, T payload, ShareEncoder<T> encoder, String mimeType,
+                                   String displayName, Executor executor){
+
+        String token = UUID.randomUUID().toString();
+        synchronized (sPayloads){
+            sPayloads.put(token, new Payload<T>(payload, encoder, mimeType, displayName, executor));
+        }
+
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(token)
+                .appendPath(displayName)
+                .build();
+    }
+
+    /**
+     * Unregisters a payload which was never handed to a receiver, so it is not kept alive until
+     * newer payloads push it out
+     * @param uri - a Uri returned by {@link #register}, any other Uri is ignored
+     * @return - true if the Uri was registered
+     */
+    public static boolean unregister(Uri uri){
+
+        String authority = uri.getAuthority();
+        String token = token(uri);
+        if(authority == null || !authority.endsWith(AUTHORITY_SUFFIX) || token == null){
+            return false;
+        }
+
+        synchronized (sPayloads){
+            return sPayloads.remove(token) != null;
+        }
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        Payload<?> payload = find(uri);
+        return payload != null ? payload.mimeType : null;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+
+        Payload<?> payload = find(uri);
+        if(payload == null){
+            return null;
+        }
+
+        if(projection == null){
+            projection = COLUMNS;
+        }
+
+        // The size is unknown until the payload is encoded
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        Object[] row = new Object[projection.length];
+        for(int i = 0; i < projection.length; i++){
+            if(OpenableColumns.DISPLAY_NAME.equals(projection[i])){
+                row[i] = payload.displayName;
+            }
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+
+        if(!"r".equals(mode)){
+            throw new FileNotFoundException("Share payloads are read only " + uri);
+        }
+
+        final Payload<?> payload = find(uri);
+        if(payload == null || !payload.isAvailable()){
+            throw new FileNotFoundException("No share payload for " + uri);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException ex) {
+            FileNotFoundException notFound = new FileNotFoundException("Unable to open a pipe for " + uri);
+            notFound.initCause(ex);
+            throw notFound;
+        }
+
+        // The writer blocks until the receiver reads, so it runs on a thread of its own
+        payload.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                OutputStream out = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
+                try {
+                    payload.encode(out);
+                    out.flush();
+
+                    // Delivered, stop keeping a large Bitmap alive for a receiver which is done with it
+                    payload.release();
+
+                } catch (IOException | RuntimeException ex) {
+
+                    // Also thrown when the receiver stops reading and closes its end, a failing
+                    // encoder must not take the process down from a pool thread either
+                    if(Log.isLoggable(TAG, Log.WARN)){
+                        Log.w(TAG, "Failed to stream the share payload " + payload.displayName, ex);
+                    }
+                } finally {
+                    TargetArtifactCache.closeQuietly(out);
+                }
+            }
+        });
+
+        return pipe[0];
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Share payloads are registered with SharePipeProvider.register");
+    }
+
+    /**
+     * Unregisters a payload, used to discard a share which was never sent
+     */
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return unregister(uri) ? 1 : 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Share payloads are read only");
+    }
+
+    private static Payload<?> find(Uri uri){
+
+        String token = token(uri);
+        if(token == null){
+            return null;
+        }
+
+        synchronized (sPayloads){
+            Payload<?> payload = sPayloads.get(token);
+            if(payload != null && !payload.isAvailable()){
+                // Released after streaming and collected since, nothing is left to serve
+                sPayloads.remove(token);
+                return null;
+            }
+            return payload;
+        }
+    }
+
+    private static String token(Uri uri){
+        return uri.getPathSegments().isEmpty() ? null : uri.getPathSegments().get(0);
+    }
+
+    /**
+     * A registered payload and how to encode it
+     * @param <T> - the payload type
+     */
+    private static final class Payload<T> {
+
+        /**
+         * The payload until it was streamed in full, then only {@link #weakPayload}
+         */
+        private volatile T payload;
+        private final WeakReference<T> weakPayload;
+        private final ShareEncoder<T> encoder;
+        private final String mimeType;
+        private final String displayName;
+        private final Executor executor;
+
+        Payload(T payload, ShareEncoder<T> encoder, String mimeType, String displayName, Executor executor){
+            this.payload = payload;
+            this.weakPayload = new WeakReference<>(payload);
+            this.encoder = encoder;
+            this.mimeType = mimeType;
+            this.displayName = displayName;
+            this.executor = executor;
+        }
+
+        boolean isAvailable(){
+            return weakPayload.get() != null;
+        }
+
+        void release(){
+            payload = null;
+        }
+
+        void encode(OutputStream out) throws IOException {
+
+            T payload = weakPayload.get();
+            if(payload == null){
+                throw new IOException("The share payload " + displayName + " is no longer held");
+            }
+            encoder.encode(payload, out);
+        }
+    }
+}
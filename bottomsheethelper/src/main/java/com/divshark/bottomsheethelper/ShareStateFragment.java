@@ -0,0 +1,251 @@
+package com.divshark.bottomsheethelper;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.design.widget.BottomSheetBehavior;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Retained Fragment without a view carrying a {@link ShareActivity}'s sharing state across
+ * configuration changes, so the recreated Activity attaches to the work already done instead of
+ * starting over.
+ *
+ * It keeps the share files still being prepared, the files already prepared, the pins on shared
+ * files with the {@link ShareFileStore} holding them, whether the sheet was showing, and keeps the
+ * targets resolving in the {@link ShareTargetRepository} until the next {@link SheetHelper} joins
+ * the resolve.
+ *
+ * Share file requests are started with this Fragment as their producer and callback, so a request
+ * outlives the Activity which started it: files are produced by the Activity attached last and
+ * outcomes are delivered to it. An outcome arriving while the state waits for the next Activity is
+ * kept with the state until that Activity takes it back.
+ *
+ * Only used by {@link ShareActivity}, it is public so the FragmentManager can instantiate it.
+ * All methods must be called on the main thread.
+ */
+public final class ShareStateFragment extends Fragment implements ShareFileRequest.Producer, ShareFileRequest.Callback {
+
+    /**
+     * Tag the Fragment is added with
+     */
+    private static final String FRAGMENT_TAG = ShareStateFragment.class.getName();
+
+    /**
+     * true while the fields below hold state for the next Activity
+     */
+    boolean retained;
+
+    /**
+     * The request still preparing share files when the Activity went away, the next Activity
+     * takes it over
+     */
+    ShareFileRequest shareFileRequest;
+
+    /**
+     * Files the retained request produced before the next Activity took it over, the request stays
+     * in {@link #shareFileRequest} so the outcome is delivered for it
+    ArrayList<Uri> readyFiles;
+
+    /**
+     * true if the retained request failed before the next Activity took it over
+     */
+    boolean shareFileFailed;
+
+    /**
+     * true if a target was chosen for the pending share files
+     */
+    boolean shareRequested;
+
+    /**
+     * Share files prepared speculatively which no target was chosen for yet
+     */
+    ArrayList<Uri> preparedFiles;
+
+    /**
+     * Files shared so far, pinned in {@link #shareFileStore}
+     */
+    final List<Uri> sharedFiles = new ArrayList<>();
+
+    /**
+     * The target chosen last
+     */
+    BottomSheetItem bottomSheetItem;
+
+    /**
+     * The BottomSheetBehavior state of the sheet
+     */
+    int sheetState = BottomSheetBehavior.STATE_HIDDEN;
+
+    /**
+     * The store the files above were issued by
+     */
+    ShareFileStore shareFileStore;
+
+    /**
+     * The Producer and Callback of the Activity attached last
+     */
+    private volatile ShareFileRequest.Producer producer;
+    private ShareFileRequest.Callback callback;
+
+    /**
+     * The repository {@link #targetsHold} keeps a resolve running in for the next SheetHelper, if any
+     */
+    private ShareTargetRepository heldRepository;
+
+    /**
+     * Finds the Fragment retained for the Activity or adds a new one
+     * @param activity - the Activity
+     * @return - the ShareStateFragment
+     */
+    static ShareStateFragment attach(FragmentActivity activity){
+
+        FragmentManager fragmentManager = activity.getSupportFragmentManager();
+        ShareStateFragment fragment = (ShareStateFragment) fragmentManager.findFragmentByTag(FRAGMENT_TAG);
+        if(fragment == null){
+            fragment = new ShareStateFragment();
+            fragmentManager.beginTransaction().add(fragment, FRAGMENT_TAG).commit();
+        }
+        return fragment;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        releaseTargets();
+        super.onDestroy();
+    }
+
+    /**
+     * Sets where share file outcomes are delivered, the Callback of a destroyed Activity stays in
+     * place so files finishing after it is gone are still discarded
+     * @param callback - the Activity's Callback
+     */
+    void setCallback(ShareFileRequest.Callback callback){
+        this.callback = callback;
+    }
+
+    /**
+     * Sets who produces share files, the Activity sets it once it has its SheetHelper so a request
+     * starting to produce in between still gets the previous Activity, which has one
+     * @param producer - the Activity's Producer
+     */
+    void setProducer(ShareFileRequest.Producer producer){
+        this.producer = producer;
+    }
+
+    /**
+     * Keeps the targets of the SheetHelper resolving after it is released, the snapshot resolved so far
+     * is handed to the next SheetHelper asking for the same action and MIME type as it joins the resolve
+     * @param sheetHelper - the SheetHelper about to be released
+     */
+    void holdTargets(SheetHelper sheetHelper){
+
+        releaseTargets();
+        heldRepository = ShareTargetRepository.getInstance(sheetHelper.getContext());
+        heldRepository.load(sheetHelper.getAction(), sheetHelper.getMimeType(),
+                sheetHelper.getBackgroundExecutor(), sheetHelper.getMainExecutor(), targetsHold);
+    }
+
+    /**
+     * Stops keeping the targets resolving, called once the next SheetHelper joined the resolve
+     */
+    void releaseTargets(){
+
+        if(heldRepository != null){
+            heldRepository.removeListener(targetsHold);
+            heldRepository = null;
+        }
+    }
+
+    /**
+     * Forgets the state handed back to an Activity
+     */
+    void clear(){
+        retained = false;
+        shareFileRequest = null;
+        readyFiles = null;
+        shareFileFailed = false;
+        shareRequested = false;
+        preparedFiles = null;
+        sharedFiles.clear();
+        bottomSheetItem = null;
+        sheetState = BottomSheetBehavior.STATE_HIDDEN;
+        shareFileStore = null;
+    }
+
+    @Override
+    public ArrayList<Uri> createShareFiles(ShareFileRequest request) {
+        return producer.createShareFiles(request);
+    }
+
+    @Override
+    public void onShareFileProgress(ShareFileRequest request, int progress) {
+
+        // Waiting for the next Activity, it shows the outcome
+        if(!isWaiting(request)){
+            callback.onShareFileProgress(request, progress);
+        }
+    }
+
+    @Override
+    public void onShareFileReady(ShareFileRequest request, ArrayList<Uri> filesToShare) {
+
+        if(isWaiting(request)){
+            readyFiles = filesToShare;
+            return;
+        }
+        callback.onShareFileReady(request, filesToShare);
+    }
+
+    @Override
+    public void onShareFileFailed(ShareFileRequest request, boolean timedOut) {
+
+        if(isWaiting(request)){
+            shareFileFailed = true;
+            return;
+        }
+        callback.onShareFileFailed(request, timedOut);
+    }
+
+    @Override
+    public void onShareFileDiscarded(ShareFileRequest request, ArrayList<Uri> filesToShare) {
+
+        // No SheetHelper to hand them to yet, streamed payloads are unregistered and the
+        // retained store takes its files back itself
+        if(retained){
+            for(Uri fileToShare : filesToShare){
+                SharePipeProvider.unregister(fileToShare);
+                if(shareFileStore != null){
+                    shareFileStore.unpin(fileToShare);
+                }
+            }
+            return;
+        }
+        callback.onShareFileDiscarded(request, filesToShare);
+    }
+
+    /**
+     * @return - true if the request is the retained one and no Activity took it over yet
+     */
+    private boolean isWaiting(ShareFileRequest request){
+        return retained && request == shareFileRequest;
+    }
+
+    /**
+     * Keeps a resolve alive, the next SheetHelper receives the snapshots itself
+     */
+    private final ShareTargetRepository.Listener targetsHold = new ShareTargetRepository.Listener() {
+        @Override
+        public void onTargetsLoaded(List<BottomSheetItem> snapshot, boolean complete) {}
+    };
+}
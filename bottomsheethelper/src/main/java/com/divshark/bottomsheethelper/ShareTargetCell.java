@@ -0,0 +1,141 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+import android.text.StaticLayout;
+import android.util.TypedValue;
+import android.view.View;
+
+/**
+ * A share target cell drawn by a single View, the icon above a label whose text layout comes
+ * precomputed from a {@link LabelLayoutCache}.
+ *
+ * Replaces the RelativeLayout, ImageView and TextView of bottom_sheet_item.xml when the
+ * {@link SheetHelper} opts into flat cells, measuring is a lookup instead of two layout passes.
+ */
+final class ShareTargetCell extends View {
+
+    /**
+     * Padding around the icon and label, as in bottom_sheet_item.xml
+     */
+    private static final float PADDING_DP = 16f;
+
+    private final int padding;
+
+    private final int iconSize;
+
+    private final Rect iconBounds = new Rect();
+
+    private final Paint iconPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final Drawable placeholder;
+
+    private LabelLayoutCache labels;
+
+    private String title;
+
+    private StaticLayout label;
+
+    private Bitmap icon;
+
+    ShareTargetCell(Context context){
+        super(context);
+
+        padding = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, PADDING_DP,
+                context.getResources().getDisplayMetrics()));
+        iconSize = context.getResources().getDimensionPixelSize(R.dimen.bsh_icon_size);
+        placeholder = ContextCompat.getDrawable(context, R.drawable.bsh_icon_placeholder);
+
+        TypedValue background = new TypedValue();
+        if(context.getTheme().resolveAttribute(R.attr.selectableItemBackground, background, true)){
+            setBackgroundResource(background.resourceId);
+        }
+        setClickable(true);
+        setFocusable(true);
+    }
+
+    /**
+     * Shows a label laid out by the cache
+     * @param labels - the cache of the adapter binding the cell
+     * @param title - the label
+     */
+    void setLabel(LabelLayoutCache labels, String title){
+
+        this.labels = labels;
+        if(title != null ? title.equals(this.title) : this.title == null){
+            return;
+        }
+        this.title = title;
+        setContentDescription(title);
+
+        int labelWidth = getWidth() - 2 * padding;
+        if(labelWidth > 0){
+            StaticLayout previous = label;
+            label = labels.get(title, labelWidth);
+
+            // Only a label of another height changes the cell's size
+            if(previous == null || previous.getHeight() != label.getHeight()){
+                requestLayout();
+            }
+        }else{
+            label = null;
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    /**
+     * @param icon - the pinned icon to draw or null for the placeholder
+     */
+    void setIcon(Bitmap icon){
+        this.icon = icon;
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+
+        int width = MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED
+                ? iconSize + 2 * padding : MeasureSpec.getSize(widthMeasureSpec);
+
+        int labelWidth = width - 2 * padding;
+        if(labels != null && labelWidth > 0 && (label == null || label.getWidth() != labelWidth)){
+            label = labels.get(title, labelWidth);
+        }
+
+        int height = 2 * padding + iconSize + (label != null ? label.getHeight() : 0);
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        int left = (w - iconSize) / 2;
+        iconBounds.set(left, padding, left + iconSize, padding + iconSize);
+        placeholder.setBounds(iconBounds);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if(icon != null){
+            canvas.drawBitmap(icon, null, iconBounds, iconPaint);
+        }else{
+            placeholder.draw(canvas);
+        }
+
+        if(label != null){
+            int saveCount = canvas.save();
+            canvas.translate(padding, padding + iconSize);
+            label.draw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+    }
+}
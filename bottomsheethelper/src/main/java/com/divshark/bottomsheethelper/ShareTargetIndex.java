@@ -0,0 +1,159 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Persisted index of the share targets resolved for an (action, mimeType) pair so a warm
+ * {@link SheetHelper} can skip {@link android.content.pm.PackageManager#queryIntentActivities}.
+ *
+ * The index is dropped whenever {@link PackageChangeReceiver} sees a package being added,
+ * removed or replaced, and whenever the platform build fingerprint changes (OS updates can
+ * change which system apps handle a share). It holds the labels, so it is also dropped when the
+ * Locale changes, and while it is valid a warm sheet needs nothing else from the PackageManager.
+ */
+final class ShareTargetIndex {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = ShareTargetIndex.class.getSimpleName();
+
+    /**
+     * Name of the SharedPreferences file backing the index
+     */
+    private static final String PREFS_NAME = "com.divshark.bottomsheethelper.share_target_index";
+
+    /**
+     * Key for the build fingerprint and Locale the index was written against
+     */
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    /**
+     * Prefix for the per (action, mimeType) entries
+     */
+    private static final String KEY_TARGETS_PREFIX = "targets:";
+
+    private static final String FIELD_PACKAGE = "p";
+    private static final String FIELD_CLASS = "c";
+    private static final String FIELD_TITLE = "t";
+
+    private ShareTargetIndex(){}
+
+    /**
+     * Reads the indexed targets for the given action and MIME type
+     * @param context - any Context, the application Context is used
+     * @param action - the Intent action
+     * @param mimeType - the MIME type
+     * @return - the indexed items in their stored order, or null if there is no valid entry
+     */
+    static List<BottomSheetItem> read(Context context, String action, String mimeType){
+
+        SharedPreferences preferences = getPreferences(context);
+
+        if(!fingerprint().equals(preferences.getString(KEY_FINGERPRINT, null))){
+            return null;
+        }
+
+        String json = preferences.getString(key(action, mimeType), null);
+        if(json == null){
+            return null;
+        }
+
+        try {
+            JSONArray array = new JSONArray(json);
+            List<BottomSheetItem> items = new ArrayList<>(array.length());
+
+            for(int i = 0; i < array.length(); i++){
+                JSONObject object = array.getJSONObject(i);
+
+                BottomSheetItem bottomSheetItem = new BottomSheetItem();
+                bottomSheetItem.packageName = object.getString(FIELD_PACKAGE);
+                bottomSheetItem.className = object.getString(FIELD_CLASS);
+                bottomSheetItem.title = object.getString(FIELD_TITLE);
+                items.add(bottomSheetItem);
+            }
+
+            return items;
+
+        } catch (JSONException ex) {
+
+            if(Log.isLoggable(TAG, Log.WARN)){
+                Log.w(TAG, "Discarding unreadable share target index entry", ex);
+            }
+
+            preferences.edit().remove(key(action, mimeType)).apply();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the resolved targets for the given action and MIME type
+     * @param context - any Context, the application Context is used
+     * @param action - the Intent action
+     * @param mimeType - the MIME type
+     * @param items - the resolved items
+     */
+    static void write(Context context, String action, String mimeType, List<BottomSheetItem> items){
+
+        JSONArray array = new JSONArray();
+
+        try {
+            for(BottomSheetItem bottomSheetItem : items){
+                JSONObject object = new JSONObject();
+                object.put(FIELD_PACKAGE, bottomSheetItem.packageName);
+                object.put(FIELD_CLASS, bottomSheetItem.className);
+                object.put(FIELD_TITLE, bottomSheetItem.title);
+                array.put(object);
+            }
+        } catch (JSONException ex) {
+
+            if(Log.isLoggable(TAG, Log.WARN)){
+                Log.w(TAG, "Unable to index share targets", ex);
+            }
+            return;
+        }
+
+        SharedPreferences preferences = getPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+
+        // Entries written against an older build or in another Locale are stale, drop them all at once
+        String fingerprint = fingerprint();
+        if(!fingerprint.equals(preferences.getString(KEY_FINGERPRINT, null))){
+            editor.clear();
+            editor.putString(KEY_FINGERPRINT, fingerprint);
+        }
+
+        editor.putString(key(action, mimeType), array.toString()).apply();
+    }
+
+    /**
+     * Drops every indexed entry, called when the set of installed packages changes
+     * @param context - any Context, the application Context is used
+     */
+    static void invalidate(Context context){
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context){
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String fingerprint(){
+        return Build.FINGERPRINT + '|' + Locale.getDefault();
+    }
+
+    private static String key(String action, String mimeType){
+        return KEY_TARGETS_PREFIX + action + '|' + mimeType;
+    }
+}
@@ -0,0 +1,621 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Process wide store of the share targets for each (action, mimeType) pair.
+ *
+ * Snapshots are ordered by frecency, how often and how recently each target was chosen for the
+ * MIME type as kept by the {@link ShareUsageStore}, then by title in the current Locale's collation.
+ * The targets chosen most are labelled first and their icons loaded while the rest resolve.
+ *
+ * Every {@link SheetHelper} asking for the same pair is handed the same immutable snapshot, so
+ * the labels are held once per process, icons are loaded on bind by the {@link IconLoader}.
+ * Concurrent requests for a pair which is still resolving attach to the in flight resolve
+ * instead of starting another one.
+ *
+ * While a pair resolves, partial snapshots are published in batches roughly once a frame, each
+ * one holding every item of the previous snapshot in the same order plus the newly labelled ones.
+ *
+ * All methods must be called on the main thread.
+ */
+final class ShareTargetRepository {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = ShareTargetRepository.class.getSimpleName();
+
+    /**
+     * Most items labelled before a partial snapshot is published
+     */
+    private static final int MAX_BATCH_SIZE = 12;
+
+    /**
+     * Longest time spent labelling before a partial snapshot is published
+     */
+    private static final long BATCH_MILLIS = 16L;
+
+    /**
+     * Frecency below which a target is no longer ranked ahead of the others, a single share
+     * drops below it after about three weeks
+     */
+    private static final double MIN_SCORE = 0.1d;
+
+    /**
+     * Most icons of top ranked targets loaded ahead of binding
+     */
+    private static final int MAX_PRIORITY_ICONS = 8;
+
+    /**
+     * Order of the items in a snapshot, the scores and collation keys are computed once per item
+     */
+    private static final Comparator<Ranked> RANK_ORDER = new Comparator<Ranked>() {
+        @Override
+        public int compare(Ranked lhs, Ranked rhs) {
+            int order = Double.compare(rhs.score, lhs.score);
+            return order != 0 ? order : lhs.sortKey.compareTo(rhs.sortKey);
+        }
+    };
+
+    private static ShareTargetRepository sInstance;
+
+    /**
+     * The Application Context
+     */
+    private final Context context;
+
+    /**
+     * Published snapshots by key
+     */
+    private final Map<String, List<BottomSheetItem>> snapshots = new HashMap<>();
+
+    /**
+     * Resolves which are still running by key
+     */
+    private final Map<String, ResolveTask> inFlight = new HashMap<>();
+
+    /**
+     * The targets chosen so far, for ranking
+     */
+    private final ShareUsageStore usageStore;
+
+    /**
+     * Callback for resolved snapshots
+     */
+    interface Listener {
+
+        /**
+         * Called with each snapshot for the pair
+         * @param snapshot - the immutable items
+         * @param complete - false while the pair is still resolving and more items may follow
+         */
+        void onTargetsLoaded(List<BottomSheetItem> snapshot, boolean complete);
+    }
+
+    static ShareTargetRepository getInstance(Context context){
+
+        if(sInstance == null){
+            sInstance = new ShareTargetRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ShareTargetRepository(Context context){
+        this.context = context;
+        this.usageStore = new ShareUsageStore(context);
+    }
+
+    /**
+     * Delivers the snapshot for the pair to the listener, synchronously when it is already
+     * resolved, otherwise as the single in flight resolve for the pair publishes
+     * @param action - the Intent action
+     * @param mimeType - the MIME type
+     * @param backgroundExecutor - the Executor to resolve on if no resolve is in flight
+     * @param mainExecutor - the Executor running on the main thread to publish through
+     * @param listener - the Listener to deliver to
+     */
+    void load(String action, String mimeType, Executor backgroundExecutor, Executor mainExecutor, Listener listener){
+
+        String key = key(action, mimeType);
+
+        List<BottomSheetItem> snapshot = snapshots.get(key);
+        if(snapshot != null){
+            listener.onTargetsLoaded(snapshot, true);
+            return;
+        }
+
+        ResolveTask task = inFlight.get(key);
+        if(task == null){
+            task = new ResolveTask(this, key, action, mimeType, backgroundExecutor, mainExecutor);
+            inFlight.put(key, task);
+            backgroundExecutor.execute(task);
+        }else{
+
+            if(Log.isLoggable(TAG, Log.DEBUG)){
+                Log.d(TAG, "joining in flight resolve for " + key);
+            }
+
+            if(task.latest != null){
+                listener.onTargetsLoaded(task.latest, false);
+            }
+        }
+
+        task.listeners.add(listener);
+    }
+
+    /**
+     * Stops delivering to a listener which is no longer interested, a resolve nobody is
+     * waiting on any more is cancelled
+     * @param listener - the Listener to remove
+     */
+    void removeListener(Listener listener){
+
+        Iterator<ResolveTask> iterator = inFlight.values().iterator();
+        while(iterator.hasNext()){
+            ResolveTask task = iterator.next();
+            if(task.listeners.remove(listener) && task.listeners.isEmpty()){
+
+                if(Log.isLoggable(TAG, Log.DEBUG)){
+                    Log.d(TAG, "cancelling unobserved resolve for " + task.key);
+                }
+
+                task.cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Records that the target was chosen for the pair. Sheets already showing the snapshot keep
+     * their order, the published snapshot is ranked again for the next load
+     * @param action - the Intent action
+     * @param mimeType - the MIME type
+     * @param bottomSheetItem - the chosen target
+     * @param backgroundExecutor - the Executor to write the usage and rank on
+     * @param mainExecutor - the Executor running on the main thread to publish through
+     */
+    void recordShare(String action, final String mimeType, BottomSheetItem bottomSheetItem,
+                     Executor backgroundExecutor, final Executor mainExecutor){
+
+        final String key = key(action, mimeType);
+        final String componentKey = bottomSheetItem.getComponentKey();
+        final List<BottomSheetItem> snapshot = snapshots.get(key);
+
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                usageStore.record(mimeType, componentKey, System.currentTimeMillis());
+                if(snapshot == null){
+                    return;
+                }
+
+                final List<BottomSheetItem> ranked = rank(mimeType, snapshot);
+                mainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Unless the snapshot was dropped or replaced meanwhile
+                        if(snapshots.get(key) == snapshot){
+                            snapshots.put(key, ranked);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Orders a copy of the items by their current scores
+     * @param mimeType - the MIME type
+     * @param items - the items of a complete snapshot
+     * @return - a new immutable snapshot
+     */
+    private List<BottomSheetItem> rank(String mimeType, List<BottomSheetItem> items){
+
+        // The items are shared with published snapshots, the ranking only reads them
+        Collator collator = Collator.getInstance();
+        long now = System.currentTimeMillis();
+        List<Ranked> ranked = new ArrayList<>(items.size());
+        for(BottomSheetItem bottomSheetItem : items){
+            ranked.add(new Ranked(bottomSheetItem, score(mimeType, bottomSheetItem, now),
+                    collator.getCollationKey(bottomSheetItem.title != null ? bottomSheetItem.title : "")));
+        }
+        Collections.sort(ranked, RANK_ORDER);
+        return items(ranked);
+    }
+
+    private double score(String mimeType, BottomSheetItem bottomSheetItem, long now){
+
+        double score = usageStore.score(mimeType, bottomSheetItem.getComponentKey(), now);
+        return score >= MIN_SCORE ? score : 0d;
+    }
+
+    /**
+     * Loads the icons of the top ranked targets so their rows show them as soon as they are bound
+     * @param packageManager - the PackageManager
+     * @param artifactCache - the cache to load into
+     * @param ranked - the ranked targets, best first
+     */
+    private static void loadPriorityIcons(PackageManager packageManager, TargetArtifactCache artifactCache,
+                                          List<BottomSheetItem> ranked){
+
+        for(int i = 0; i < ranked.size() && i < MAX_PRIORITY_ICONS; i++){
+            try {
+                artifactCache.releaseIcon(artifactCache.getIcon(packageManager, ranked.get(i).getComponent()));
+            } catch (PackageManager.NameNotFoundException ex) {
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "share target is gone " + ranked.get(i).packageName, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every published snapshot, the next load resolves again. Resolves still running may
+     * have read the old packages, they are cancelled so their result is never published and
+     * started over for the listeners waiting on them
+     */
+    void invalidate(){
+
+        snapshots.clear();
+
+        for(Map.Entry<String, ResolveTask> entry : inFlight.entrySet()){
+            ResolveTask stale = entry.getValue();
+            stale.cancel();
+
+            if(Log.isLoggable(TAG, Log.DEBUG)){
+                Log.d(TAG, "restarting stale resolve for " + stale.key);
+            }
+
+            ResolveTask task = new ResolveTask(this, stale.key, stale.action, stale.mimeType,
+                    stale.backgroundExecutor, stale.mainExecutor);
+            task.listeners.addAll(stale.listeners);
+            entry.setValue(task);
+            stale.backgroundExecutor.execute(task);
+        }
+    }
+
+    private void publish(ResolveTask task, List<BottomSheetItem> snapshot, boolean complete){
+
+        if(inFlight.get(task.key) != task){
+            return;
+        }
+
+        if(complete){
+            inFlight.remove(task.key);
+            snapshots.put(task.key, snapshot);
+        }else{
+            task.latest = snapshot;
+        }
+
+        // Copy so a listener can remove itself while being called
+        for(Listener listener : new ArrayList<>(task.listeners)){
+            listener.onTargetsLoaded(snapshot, complete);
+        }
+
+        if(complete){
+            task.listeners.clear();
+        }
+    }
+
+    /**
+     * Ends a resolve which failed, its listeners get what was resolved so far as complete so no
+     * sheet waits forever, nothing is cached and the next load resolves again
+     */
+    private void fail(ResolveTask task){
+
+        if(inFlight.get(task.key) != task){
+            return;
+        }
+        inFlight.remove(task.key);
+
+        List<BottomSheetItem> snapshot = task.latest != null ? task.latest : Collections.<BottomSheetItem>emptyList();
+        for(Listener listener : new ArrayList<>(task.listeners)){
+            listener.onTargetsLoaded(snapshot, true);
+        }
+        task.listeners.clear();
+    }
+
+    private static String key(String action, String mimeType){
+        return action + '|' + mimeType;
+    }
+
+    /**
+     * Resolves the targets for a pair, from the {@link ShareTargetIndex} when it is warm,
+     * publishing partial snapshots through the task as the labels are loaded
+     * @param action - the Intent action
+     * @param mimeType - the MIME type
+     * @param task - the task to publish partial snapshots through
+     * @return - the complete snapshot
+     */
+    private List<BottomSheetItem> resolve(String action, String mimeType, ResolveTask task){
+
+        PackageManager packageManager = context.getPackageManager();
+        TargetArtifactCache artifactCache = TargetArtifactCache.getInstance(context);
+
+        List<BottomSheetItem> candidates = ShareTargetIndex.read(context, action, mimeType);
+        List<ActivityInfo> activityInfos = null;
+        boolean indexed = candidates != null;
+
+        if(indexed){
+
+            // Warm path, use the persisted index and skip querying the PackageManager
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "loading " + candidates.size() + " share targets from the index");
+            }
+
+        }else{
+
+            // ACTION_SEND_MULTIPLE only matches targets accepting several items
+            Intent shareIntent = new Intent(action != null ? action : Intent.ACTION_SEND, null);
+            shareIntent.setType(mimeType);
+            List<ResolveInfo> activities = packageManager.queryIntentActivities(shareIntent, 0);
+
+            candidates = new ArrayList<>(activities != null ? activities.size() : 0);
+            activityInfos = new ArrayList<>(candidates.size());
+            if(activities != null){
+                for (ResolveInfo activity : activities) {
+                    BottomSheetItem bottomSheetItem = new BottomSheetItem();
+                    bottomSheetItem.className = activity.activityInfo.name;
+                    bottomSheetItem.packageName = activity.activityInfo.packageName;
+                    candidates.add(bottomSheetItem);
+                    activityInfos.add(activity.activityInfo);
+                }
+            }
+        }
+
+        // Label the targets chosen most first, they lead the snapshot
+        Integer[] order = new Integer[candidates.size()];
+        final double[] scores = new double[candidates.size()];
+        int ranked = 0;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < order.length; i++) {
+            scores[i] = score(mimeType, candidates.get(i), now);
+            if(scores[i] > 0d){
+                ranked++;
+            }
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(scores[rhs], scores[lhs]);
+            }
+        });
+
+        // Collator is not thread safe, each resolve gets its own
+        Collator collator = Collator.getInstance();
+
+        List<Ranked> snapshot = Collections.emptyList();
+        List<Ranked> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        long batchStart = SystemClock.uptimeMillis();
+
+        for (int n = 0; n < order.length; n++) {
+
+            if(task.isCancelled()){
+                return items(snapshot);
+            }
+
+            if(n == ranked && n > 0){
+                // Show the top ranked targets before anything else and get their icons ready
+                snapshot = merge(snapshot, batch);
+                List<BottomSheetItem> top = items(snapshot);
+                task.publishPartial(top);
+                batch.clear();
+                loadPriorityIcons(packageManager, artifactCache, top);
+                batchStart = SystemClock.uptimeMillis();
+            }
+
+            int i = order[n];
+            BottomSheetItem bottomSheetItem = candidates.get(i);
+            CollationKey sortKey;
+            try {
+                // The index holds the labels, a warm resolve makes no call per target
+                if(!indexed || bottomSheetItem.title == null){
+                    bottomSheetItem.title = artifactCache.getLabel(packageManager,
+                            bottomSheetItem.getComponent(),
+                            activityInfos != null ? activityInfos.get(i) : null);
+                }
+                sortKey = collator.getCollationKey(bottomSheetItem.title);
+
+            } catch (PackageManager.NameNotFoundException ex) {
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "share target is gone " + bottomSheetItem.packageName, ex);
+                }
+
+                // The index is stale, the next resolve queries the PackageManager again
+                if(indexed){
+                    ShareTargetIndex.invalidate(context);
+                }
+                continue;
+            }
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "can handle " + action + " " + bottomSheetItem.title);
+            }
+
+            batch.add(new Ranked(bottomSheetItem, scores[i], sortKey));
+
+            if(batch.size() >= MAX_BATCH_SIZE || SystemClock.uptimeMillis() - batchStart >= BATCH_MILLIS){
+                snapshot = merge(snapshot, batch);
+                task.publishPartial(items(snapshot));
+                batch.clear();
+                batchStart = SystemClock.uptimeMillis();
+            }
+        }
+
+        List<BottomSheetItem> complete = items(merge(snapshot, batch));
+
+        if(ranked == order.length && ranked > 0){
+            loadPriorityIcons(packageManager, artifactCache, complete);
+        }
+
+        // A cancelled resolve may have read packages which changed since
+        if(!indexed && !task.isCancelled()){
+            ShareTargetIndex.write(context, action, mimeType, complete);
+
+            // The index is only rebuilt once packages changed, drop the artifacts of removed ones
+            artifactCache.sweep(packageManager);
+        }
+        return complete;
+    }
+
+    /**
+     * Merges a batch into a snapshot, keeping the items of the snapshot in their order
+     * @param snapshot - the sorted snapshot
+     * @param batch - the new items
+     * @return - a new sorted snapshot
+     */
+    private static List<Ranked> merge(List<Ranked> snapshot, List<Ranked> batch){
+
+        Collections.sort(batch, RANK_ORDER);
+
+        List<Ranked> merged = new ArrayList<>(snapshot.size() + batch.size());
+        int i = 0;
+        int j = 0;
+        while(i < snapshot.size() || j < batch.size()){
+            if(j == batch.size() || (i < snapshot.size() && RANK_ORDER.compare(snapshot.get(i), batch.get(j)) <= 0)){
+                merged.add(snapshot.get(i++));
+            }else{
+                merged.add(batch.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @param ranked - ranked targets
+     * @return - a new immutable snapshot of their items in the same order
+     */
+    private static List<BottomSheetItem> items(List<Ranked> ranked){
+
+        List<BottomSheetItem> items = new ArrayList<>(ranked.size());
+        for(Ranked target : ranked){
+            items.add(target.item);
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * A target with the score and collation key it is ordered by, computed for one ranking so the
+     * items, which published snapshots share, are never written to while they are ordered
+     */
+    private static final class Ranked {
+
+        final BottomSheetItem item;
+        final double score;
+        final CollationKey sortKey;
+
+        Ranked(BottomSheetItem item, double score, CollationKey sortKey){
+            this.item = item;
+            this.score = score;
+            this.sortKey = sortKey;
+        }
+    }
+
+    /**
+     * Resolves one (action, mimeType) pair for every listener waiting on it, publishing
+     * through the main thread Executor
+     */
+    private static final class ResolveTask implements Runnable {
+
+        private final ShareTargetRepository repository;
+        private final String key;
+        private final String action;
+        private final String mimeType;
+        private final Executor backgroundExecutor;
+        private final Executor mainExecutor;
+        private final List<Listener> listeners = new ArrayList<>();
+
+        /**
+         * The last partial snapshot, handed to listeners joining mid resolve
+         */
+        private List<BottomSheetItem> latest;
+
+        private volatile boolean cancelled;
+
+        ResolveTask(ShareTargetRepository repository, String key, String action, String mimeType,
+                    Executor backgroundExecutor, Executor mainExecutor){
+            this.repository = repository;
+            this.key = key;
+            this.action = action;
+            this.mimeType = mimeType;
+            this.backgroundExecutor = backgroundExecutor;
+            this.mainExecutor = mainExecutor;
+        }
+
+        void cancel(){
+            cancelled = true;
+        }
+
+        boolean isCancelled(){
+            return cancelled;
+        }
+
+        void publishPartial(List<BottomSheetItem> snapshot){
+            publishOnMain(snapshot, false);
+        }
+
+        @Override
+        public void run() {
+
+            if(cancelled){
+                return;
+            }
+
+            List<BottomSheetItem> snapshot;
+            try {
+                snapshot = repository.resolve(action, mimeType, this);
+            } catch (RuntimeException ex) {
+
+                // For example the PackageManager dying, the task must not stay in flight
+                if(Log.isLoggable(TAG, Log.ERROR)){
+                    Log.e(TAG, "Failed to resolve share targets for " + key, ex);
+                }
+
+                mainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        repository.fail(ResolveTask.this);
+                    }
+                });
+                return;
+            }
+
+            if(!cancelled){
+                publishOnMain(snapshot, true);
+            }
+        }
+
+        private void publishOnMain(final List<BottomSheetItem> snapshot, final boolean complete){
+
+            mainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    repository.publish(ResolveTask.this, snapshot, complete);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size on disk record of which share targets were chosen for each MIME type, used to rank
+ * the targets by frecency.
+ *
+ * Each (mimeType, component) pair owns one fixed size record in a small open addressed table,
+ * holding its use count decayed as of its last use. The table is read once and kept in memory,
+ * recording a share probes a bounded number of slots and rewrites a single record, so both are
+ * O(1) and the file never grows. When every probed slot is taken the least used pair is evicted.
+ *
+ * Safe to call from any thread, records are written on the caller's thread.
+ */
+final class ShareUsageStore {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = ShareUsageStore.class.getSimpleName();
+
+    /**
+     * File under {@link Context#getFilesDir()} holding the table
+     */
+    private static final String FILE_NAME = "bottomsheethelper/usage";
+
+    /**
+     * Version of the on disk format, bump when it changes
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Number of records in the table
+     */
+    static final int SLOTS = 128;
+
+    /**
+     * Most slots looked at for one pair
+     */
+    static final int MAX_PROBES = 8;
+
+    /**
+     * Version and slot count
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Key, last use and decayed count
+     */
+    private static final int RECORD_SIZE = 24;
+
+    private static final int TABLE_SIZE = HEADER_SIZE + SLOTS * RECORD_SIZE;
+
+    /**
+     * Time in milliseconds after which a use counts half as much
+     */
+    static final long HALF_LIFE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private final File file;
+
+    private final long[] keys = new long[SLOTS];
+
+    private final long[] lastUsed = new long[SLOTS];
+
+    private final double[] counts = new double[SLOTS];
+
+    private boolean loaded;
+
+    /**
+     * true once the file holds the whole table, from then on only changed records are written
+     */
+    private boolean synced;
+
+    ShareUsageStore(Context context){
+        this(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @param file - the file holding the table, created on the first record
+     */
+    ShareUsageStore(File file){
+        this.file = file;
+    }
+
+    /**
+     * @param mimeType - the MIME type shared
+     * @param componentKey - the flattened component of the target
+     * @param now - the current wall clock time
+     * @return - the decayed number of shares to the target, 0 if it was never chosen
+     */
+    synchronized double score(String mimeType, String componentKey, long now){
+
+        load();
+
+        int slot = find(hash(mimeType, componentKey));
+        return slot >= 0 ? decayed(slot, now) : 0d;
+    }
+
+    /**
+     * Records a share to the target and writes its record
+     * @param mimeType - the MIME type shared
+     * @param componentKey - the flattened component of the target
+     * @param now - the current wall clock time
+     */
+    synchronized void record(String mimeType, String componentKey, long now){
+
+        load();
+
+        long key = hash(mimeType, componentKey);
+        int slot = find(key);
+        if(slot < 0){
+            slot = claim(key, now);
+        }
+
+        counts[slot] = decayed(slot, now) + 1d;
+        lastUsed[slot] = now;
+        keys[slot] = key;
+
+        write(slot);
+    }
+
+    /**
+     * @return - the slot of the key or -1
+     */
+    private int find(long key){
+
+        int start = start(key);
+        for(int i = 0; i < MAX_PROBES; i++){
+            int slot = (start + i) % SLOTS;
+            if(keys[slot] == key){
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return - a free slot for the key, or the least used one it may take over
+     */
+    private int claim(long key, long now){
+
+        int start = start(key);
+        int victim = start;
+        for(int i = 0; i < MAX_PROBES; i++){
+            int slot = (start + i) % SLOTS;
+            if(keys[slot] == 0L){
+                return slot;
+            }
+            if(decayed(slot, now) < decayed(victim, now)){
+                victim = slot;
+            }
+        }
+
+        keys[victim] = 0L;
+        counts[victim] = 0d;
+        lastUsed[victim] = 0L;
+        return victim;
+    }
+
+    private double decayed(int slot, long now){
+
+        if(keys[slot] == 0L){
+            return 0d;
+        }
+        long age = Math.max(0L, now - lastUsed[slot]);
+        return counts[slot] * Math.pow(0.5d, age / (double) HALF_LIFE_MILLIS);
+    }
+
+    /**
+     * @return - the first slot probed for the pair
+     */
+    static int homeSlot(String mimeType, String componentKey){
+        return start(hash(mimeType, componentKey));
+    }
+
+    private static int start(long key){
+        return (int) ((key >>> 1) % SLOTS);
+    }
+
+    /**
+     * 64 bit FNV-1a of the pair, never 0 which marks a free slot
+     */
+    private static long hash(String mimeType, String componentKey){
+
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, mimeType != null ? mimeType : "");
+        hash = (hash ^ '|') * 0x100000001b3L;
+        hash = hash(hash, componentKey);
+        return hash != 0L ? hash : 1L;
+    }
+
+    private static long hash(long hash, String value){
+
+        for(int i = 0; i < value.length(); i++){
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Reads the table the first time it is needed, an unreadable or foreign file is ignored and
+     * replaced on the next write
+     */
+    private void load(){
+
+        if(loaded){
+            return;
+        }
+        loaded = true;
+
+        if(file.length() != TABLE_SIZE){
+            return;
+        }
+
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            byte[] table = new byte[TABLE_SIZE];
+            in.readFully(table);
+
+            ByteBuffer buffer = ByteBuffer.wrap(table);
+            if(buffer.getInt() != VERSION || buffer.getInt() != SLOTS){
+                return;
+            }
+
+            for(int slot = 0; slot < SLOTS; slot++){
+                keys[slot] = buffer.getLong();
+                lastUsed[slot] = buffer.getLong();
+                counts[slot] = buffer.getDouble();
+            }
+            synced = true;
+
+        } catch (IOException ex) {
+
+            if(Log.isLoggable(TAG, Log.WARN)){
+                Log.w(TAG, "Unable to read share usage", ex);
+            }
+
+            // Start over rather than rank from a partly read table
+            for(int slot = 0; slot < SLOTS; slot++){
+                keys[slot] = 0L;
+            }
+        } finally {
+            TargetArtifactCache.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes one record, or the whole table when the file does not hold it yet
+     */
+    private void write(int slot){
+
+        RandomAccessFile out = null;
+        try {
+            File parent = file.getParentFile();
+            if(!parent.exists() && !parent.mkdirs()){
+                throw new IOException("Unable to create " + parent);
+            }
+
+            out = new RandomAccessFile(file, "rw");
+            if(synced){
+                ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                putRecord(record, slot);
+                out.seek(HEADER_SIZE + (long) slot * RECORD_SIZE);
+                out.write(record.array());
+                return;
+            }
+
+            ByteBuffer table = ByteBuffer.allocate(TABLE_SIZE);
+            table.putInt(VERSION);
+            table.putInt(SLOTS);
+            for(int i = 0; i < SLOTS; i++){
+                putRecord(table, i);
+            }
+            out.setLength(0L);
+            out.write(table.array());
+            synced = true;
+
+        } catch (IOException ex) {
+
+            if(Log.isLoggable(TAG, Log.WARN)){
+                Log.w(TAG, "Unable to record share usage", ex);
+            }
+        } finally {
+            TargetArtifactCache.closeQuietly(out);
+        }
+    }
+
+    private void putRecord(ByteBuffer buffer, int slot){
+        buffer.putLong(keys[slot]);
+        buffer.putLong(lastUsed[slot]);
+        buffer.putDouble(counts[slot]);
+    }
+}
@@ -0,0 +1,146 @@
+package com.divshark.bottomsheethelper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default Executors for the sheet's work, used when the {@link SheetHelper.Builder} is not given
+ * its own. Background work runs on a small pool owned by the library rather than the shared
+ * AsyncTask pool, so it never queues behind an app's image or network work.
+ */
+public final class SheetExecutors {
+
+    /**
+     * Threads in the default background pool
+     */
+    private static final int POOL_SIZE = 2;
+
+    /**
+     * Time an idle pool thread is kept alive
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    /**
+     * Most pipes written at once, further opens wait for a writer to finish
+     */
+    private static final int MAX_PIPE_WRITERS = 8;
+
+    private static Executor sBackground;
+
+    private static Executor sIcons;
+
+    private static Executor sMainThread;
+
+    private static Executor sPipeWriter;
+
+    private static Executor sEncoder;
+
+    private SheetExecutors(){}
+
+    /**
+     * @return - the library's background pool, threads run at background priority
+     */
+    public static synchronized Executor background(){
+
+        if(sBackground == null){
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new SheetThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            sBackground = executor;
+        }
+        return sBackground;
+    }
+
+    /**
+     * @return - a pool of its own for loading icons as rows are bound, so icons keep loading while
+     * the background pool encodes a large share file
+     */
+    static synchronized Executor icons(){
+
+        if(sIcons == null){
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new SheetThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            sIcons = executor;
+        }
+        return sIcons;
+    }
+
+    /**
+     * @return - an Executor which runs on the main thread
+     */
+    public static synchronized Executor mainThread(){
+
+        if(sMainThread == null){
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sMainThread = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return sMainThread;
+    }
+
+    /**
+     * @return - a pool with a thread per open pipe, up to {@link #MAX_PIPE_WRITERS}, a pipe writer
+     * blocks until its reader catches up and must not hold up the background pool
+     */
+    static synchronized Executor pipeWriter(){
+
+        if(sPipeWriter == null){
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PIPE_WRITERS, MAX_PIPE_WRITERS,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new SheetThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            sPipeWriter = executor;
+        }
+        return sPipeWriter;
+    }
+
+    /**
+     * @return - a pool with a thread per core, up to 4, encoding the items of a multiple share in parallel
+     */
+    static synchronized Executor encoder(){
+
+        if(sEncoder == null){
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new SheetThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            sEncoder = executor;
+        }
+        return sEncoder;
+    }
+
+    /**
+     * Names the pool threads and drops them to background priority
+     */
+    private static final class SheetThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "BottomSheetHelper #" + count.incrementAndGet());
+        }
+    }
+}
@@ -1,20 +1,19 @@
 package com.divshark.bottomsheethelper;
 
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
-import android.os.AsyncTask;
+import android.graphics.Bitmap;
+import android.net.Uri;
 import android.support.design.widget.BottomSheetBehavior;
-import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * Helper class to implement Sharing in an app using a Bottom Sheet as a RecyclerView
@@ -27,6 +26,26 @@ public class SheetHelper {
      */
     private static final String TAG = SheetHelper.class.getSimpleName();
 
+    /**
+     * Default time in milliseconds the share file may take to prepare
+     */
+    private static final long DEFAULT_SHARE_FILE_TIMEOUT = 30000L;
+
+    /**
+     * Default most bytes kept in the share directory
+     */
+    private static final long DEFAULT_SHARE_CACHE_SIZE = 20 * 1024 * 1024L;
+
+    /**
+     * Default time in milliseconds a share file is kept after its last share
+     */
+    private static final long DEFAULT_SHARE_CACHE_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * Default quality for lossy formats
+     */
+    private static final int DEFAULT_QUALITY = 90;
+
     /**
      * BottomSheetBehavior.BottomSheetCallback interface
      */
@@ -43,7 +62,7 @@ public class SheetHelper {
     private BottomSheetAdapter adapter;
 
     /**
-     * The List of {@link BottomSheetItem}'s
+     * The immutable snapshot of {@link BottomSheetItem}'s shared through the {@link ShareTargetRepository}
      */
     private List<BottomSheetItem> bottomSheetItems;
 
@@ -118,10 +137,123 @@ public class SheetHelper {
     private int backgroundColor;
 
     /**
-     * AsyncTask for getting applications for the {@link #action} for the Intent
+     * true to show targets in batches as they resolve instead of once they all have
+     */
+    private boolean streaming;
+
+    /**
+     * Executor for all of the sheet's background work
+     */
+    private Executor backgroundExecutor;
+
+    /**
+     * Executors for loading icons, encoding the items of a multiple share and writing share pipes,
+     * the background Executor when the app set one, otherwise pools of the library
+     */
+    private Executor iconExecutor;
+    private Executor encoderExecutor;
+    private Executor pipeExecutor;
+
+    /**
+     * Executor running on the main thread, results are delivered through it
+     */
+    private Executor mainExecutor;
+
+    /**
+     * Time in milliseconds the share file may go without progress before the share is abandoned, 0 for no limit
+     */
+    private long shareFileTimeout;
+
+    /**
+     * true to start preparing the share file as soon as the sheet opens
+     */
+    private boolean speculativeShareFile;
+
+    /**
+     * Most bytes kept in the share directory, 0 for no limit
+     */
+    private long shareCacheSize;
+
+    /**
+     * Time in milliseconds a share file is kept after its last share, 0 for no limit
+     */
+    private long shareCacheMaxAge;
+
+    /**
+     * The kind of payload shared
+     */
+    private FileType fileType;
+
+    /**
+     * Quality from 0 to 100 for lossy formats
+     */
+    private int quality;
+
+    /**
+     * Longest side of a shared image in pixels, 0 to keep the size
+     */
+    private int maxDimension;
+
+    /**
+     * true to stream payloads to the receiver through {@link SharePipeProvider} instead of writing files
+     */
+    private boolean pipeShareFile;
+
+    /**
+     * Fewest files a multiple share goes ahead with, 0 to require every file
+     */
+    private int minShareFiles;
+
+    /**
+     * true to inflate the sheet when the main thread is first idle instead of on the first show
+     */
+    private boolean inflateSheetWhenIdle;
+
+    /**
+     * true to inflate a screenful of item views off the main thread as soon as the sheet exists
+     */
+    private boolean prewarmItems;
+
+    /**
+     * true to draw each cell with a single View and precomputed label layouts
+     */
+    private boolean flatCells;
+
+    /**
+     * true to show a search field filtering the targets as the user types
+     */
+    private boolean searchable;
+
+    /**
+     * Filters {@link #bottomSheetItems} into the adapter when searchable, otherwise null
+     */
+    private TargetFilter targetFilter;
+
+    /**
+     * true while {@link #bottomSheetItems} were restored from saved state and wait for the resolve
+     */
+    private boolean restoredItems;
+
+    /**
+     * Encoder for Bitmap payloads, created on first use
      */
-    private ResolveInfoTask mResolveInfoTask;
+    private BitmapEncoder bitmapEncoder;
 
+    /**
+     * Encoder for text payloads, created on first use
+     */
+    private TextEncoder textEncoder;
+
+    /**
+     * Content addressed store for the share files, created on first use
+     */
+    private ShareFileStore shareFileStore;
+
+    /**
+     * Payloads registered with {@link SharePipeProvider} which no target was handed yet,
+     * unregistered on {@link #release()}
+     */
+    private final List<Uri> pipeUris = new ArrayList<>();
 
     /**
      * Private constructor called by the builder for Setup
@@ -145,11 +277,42 @@ public class SheetHelper {
         titleColor = builder.titleColor != 0 ? builder.titleColor : context.getResources().getColor(R.color.primary_black) ;
         itemTextColor = builder.itemTextColor != 0 ? builder.itemTextColor : context.getResources().getColor(R.color.secondary_black);
         backgroundColor = builder.backgroundColor!= 0 ? builder.backgroundColor : context.getResources().getColor(R.color.white);
-
-        // We create the BottomSheetItem List and adapter separately from the Builder
-        bottomSheetItems = new ArrayList<>();
-        adapter = new BottomSheetAdapter(context, bottomSheetItems);
+        streaming = builder.streaming;
+        backgroundExecutor = builder.backgroundExecutor != null ? builder.backgroundExecutor : SheetExecutors.background();
+        iconExecutor = builder.iconExecutor != null ? builder.iconExecutor
+                : builder.backgroundExecutor != null ? builder.backgroundExecutor : SheetExecutors.icons();
+        encoderExecutor = builder.encoderExecutor != null ? builder.encoderExecutor
+                : builder.backgroundExecutor != null ? builder.backgroundExecutor : SheetExecutors.encoder();
+        pipeExecutor = builder.pipeExecutor != null ? builder.pipeExecutor
+                : builder.backgroundExecutor != null ? builder.backgroundExecutor : SheetExecutors.pipeWriter();
+        mainExecutor = builder.mainExecutor != null ? builder.mainExecutor : SheetExecutors.mainThread();
+        shareFileTimeout = builder.shareFileTimeout >= 0 ? builder.shareFileTimeout : DEFAULT_SHARE_FILE_TIMEOUT;
+        speculativeShareFile = builder.speculativeShareFile;
+        shareCacheSize = builder.shareCacheSize >= 0 ? builder.shareCacheSize : DEFAULT_SHARE_CACHE_SIZE;
+        shareCacheMaxAge = builder.shareCacheMaxAge >= 0 ? builder.shareCacheMaxAge : DEFAULT_SHARE_CACHE_MAX_AGE;
+        fileType = builder.fileType != null ? builder.fileType : FileType.BITMAP;
+        quality = builder.quality >= 0 ? builder.quality : DEFAULT_QUALITY;
+        maxDimension = builder.maxDimension;
+        pipeShareFile = builder.pipeShareFile;
+        minShareFiles = builder.minShareFiles;
+        inflateSheetWhenIdle = builder.inflateSheetWhenIdle;
+        prewarmItems = builder.prewarmItems;
+        flatCells = builder.flatCells;
+        searchable = builder.searchable;
+
+        // We create the adapter separately from the Builder, the items come from the shared repository
+        bottomSheetItems = Collections.emptyList();
+        adapter = new BottomSheetAdapter(context, bottomSheetItems, backgroundExecutor, iconExecutor, mainExecutor);
         adapter.setItemTextColor(itemTextColor);
+        adapter.setFlatCells(flatCells);
+        if(searchable){
+            targetFilter = new TargetFilter(new TargetFilter.Callback() {
+                @Override
+                public void onFiltered(List<BottomSheetItem> items) {
+                    adapter.setBottomSheetItems(items);
+                }
+            }, backgroundExecutor, mainExecutor);
+        }
 
         // initialize the sheet
         initBottomSheet();
@@ -227,6 +390,289 @@ public class SheetHelper {
 
     public int getBackgroundColor(){return backgroundColor;}
 
+    public boolean isStreaming(){return streaming;}
+
+    public Executor getBackgroundExecutor(){return backgroundExecutor;}
+
+    public Executor getIconExecutor(){return iconExecutor;}
+
+    public Executor getEncoderExecutor(){return encoderExecutor;}
+
+    public Executor getPipeExecutor(){return pipeExecutor;}
+
+    public Executor getMainExecutor(){return mainExecutor;}
+
+    public long getShareFileTimeout(){return shareFileTimeout;}
+
+    public boolean isSpeculativeShareFile(){return speculativeShareFile;}
+
+    public long getShareCacheSize(){return shareCacheSize;}
+
+    public long getShareCacheMaxAge(){return shareCacheMaxAge;}
+
+    public FileType getFileType(){return fileType;}
+
+    public int getQuality(){return quality;}
+
+    public int getMaxDimension(){return maxDimension;}
+
+    public boolean isPipeShareFile(){return pipeShareFile;}
+
+    public int getMinShareFiles(){return minShareFiles;}
+
+    public boolean isInflateSheetWhenIdle(){return inflateSheetWhenIdle;}
+
+    public boolean isPrewarmItems(){return prewarmItems;}
+
+    public boolean isFlatCells(){return flatCells;}
+
+    public boolean isSearchable(){return searchable;}
+
+    /**
+     * Shows only the targets matching the query, ignored unless the sheet is searchable
+     * @param query - the text typed in the search field, empty to show every target
+     */
+    void setQuery(CharSequence query){
+
+        if(targetFilter != null){
+            targetFilter.setQuery(query);
+        }
+    }
+
+    /**
+     * Shows the snapshot, through the filter when the sheet is searchable
+     */
+    private void showBottomSheetItems(){
+
+        if(targetFilter != null){
+            targetFilter.setItems(bottomSheetItems);
+        }else{
+            adapter.setBottomSheetItems(bottomSheetItems);
+        }
+    }
+
+    /**
+     * @return - the encoder for Bitmaps, the format follows the image {@link #getMimeType()} or
+     * else {@link #getFileExtension()}, PNG when neither names one
+     */
+    public synchronized BitmapEncoder getBitmapEncoder(){
+
+        if(bitmapEncoder == null){
+            bitmapEncoder = BitmapEncoder.forType(mimeType, fileExtension, quality, maxDimension);
+        }
+        return bitmapEncoder;
+    }
+
+    /**
+     * @return - the encoder for text
+     */
+    public synchronized TextEncoder getTextEncoder(){
+
+        if(textEncoder == null){
+            textEncoder = new TextEncoder();
+        }
+        return textEncoder;
+    }
+
+    /**
+     * Encodes a Bitmap into the share directory with {@link #getBitmapEncoder()}, reusing the
+     * file of an earlier identical share, call it from {@link ShareActivity#createShareFile()}.
+     * With {@link #isPipeShareFile()} nothing is written, the Bitmap is encoded as the receiver reads it
+     * @param bitmap - the Bitmap to share
+     * @return - the Uri to share
+     * @throws IOException - if the file could not be written
+     */
+    public Uri createShareFile(Bitmap bitmap) throws IOException {
+
+        if(pipeShareFile){
+            return registerPipe(bitmap, getBitmapEncoder());
+        }
+        return getShareFileStore().obtain(bitmap, getBitmapEncoder());
+    }
+
+    /**
+     * Writes text into the share directory with {@link #getTextEncoder()}, reusing the file of an
+     * earlier identical share. With {@link #isPipeShareFile()} the text is streamed to the receiver instead
+     * @param text - the text to share
+     * @return - the Uri to share
+     * @throws IOException - if the file could not be written
+     */
+    public Uri createShareFile(CharSequence text) throws IOException {
+
+        if(pipeShareFile){
+            return registerPipe(text, getTextEncoder());
+        }
+        return getShareFileStore().obtain(text, getTextEncoder());
+    }
+
+    /**
+     * Shares a file which already exists, such as a recorded video, without copying it when it
+     * is under one of the {@link #getFileProvider()}'s paths, otherwise it is copied into the
+     * share directory with progress reported to the request
+     * @param file - the existing file
+     * @param request - the request reporting progress and cancellation, may be null
+     * @return - the Uri to share
+     * @throws IOException - if the file had to be copied and could not be
+     */
+    public Uri createShareFile(File file, ShareFileRequest request) throws IOException {
+        return getShareFileStore().share(file, request);
+    }
+
+    /**
+     * Encodes Bitmaps for an Intent.ACTION_SEND_MULTIPLE share in parallel with {@link #getBitmapEncoder()},
+     * call it from {@link ShareActivity#createShareFiles(ShareFileRequest)}
+     * @param bitmaps - the Bitmaps to share
+     * @param request - the request reporting progress and cancellation
+     * @return - the Uris to share in the order of the Bitmaps, leaving out any which failed
+     * @throws IOException - if fewer than {@link #getMinShareFiles()} files could be written
+     */
+    public ArrayList<Uri> createShareFiles(List<Bitmap> bitmaps, ShareFileRequest request) throws IOException {
+        return createShareFiles(bitmaps, getBitmapEncoder(), request);
+    }
+
+    /**
+     * Encodes payloads for an Intent.ACTION_SEND_MULTIPLE share in parallel on {@link #getEncoderExecutor()},
+     * running encodes share one memory budget. With {@link #isPipeShareFile()} the payloads are
+     * streamed to the receiver instead
+     * @param payloads - the payloads to share
+     * @param encoder - the encoder for the payloads
+     * @param request - the request reporting progress and cancellation, may be null
+     * @param <T> - the payload type
+     * @return - the Uris to share in the order of the payloads, leaving out any which failed
+     * @throws IOException - if fewer than {@link #getMinShareFiles()} files could be written
+     */
+    public <T> ArrayList<Uri> createShareFiles(List<? extends T> payloads, ShareEncoder<T> encoder,
+                                               ShareFileRequest request) throws IOException {
+
+        if(pipeShareFile){
+            ArrayList<Uri> filesToShare = new ArrayList<>(payloads.size());
+            for(T payload : payloads){
+                filesToShare.add(registerPipe(payload, encoder));
+            }
+            return filesToShare;
+        }
+
+        int minFiles = minShareFiles > 0 ? Math.min(minShareFiles, payloads.size()) : payloads.size();
+        return ParallelShareEncoder.encode(getShareFileStore(), payloads, encoder, encoderExecutor, minFiles, request);
+    }
+
+    /**
+     * Registers a payload to stream and tracks it until a target is handed its Uri
+     */
+    private <T> Uri registerPipe(T payload, ShareEncoder<T> encoder){
+
+        Uri uri = SharePipeProvider.register(context, payload, encoder, mimeType, getDisplayName(encoder), pipeExecutor);
+        synchronized (pipeUris){
+            pipeUris.add(uri);
+        }
+        return uri;
+    }
+
+    /**
+     * Leaves the streamed payloads of the files registered on {@link #release()}, for files handed
+     * to a target, which may read them after the sheet is gone, or to the instance recreated
+     * after a configuration change
+     * @param filesToShare - the files kept
+     */
+    void keepPipes(List<Uri> filesToShare){
+        synchronized (pipeUris){
+            pipeUris.removeAll(filesToShare);
+        }
+    }
+
+    /**
+     * Leaves every payload registered so far on {@link #release()}, for a configuration change
+     * which hands the files prepared, or still being prepared, to the recreated instance. It
+     * unregisters those it discards
+     */
+    void keepPipes(){
+        synchronized (pipeUris){
+            pipeUris.clear();
+        }
+    }
+
+    /**
+     * @return - the file name receivers are shown for a payload streamed by the encoder
+     */
+    private String getDisplayName(ShareEncoder<?> encoder){
+        return (filePrefix != null ? filePrefix : "share") + ShareFileStore.fileExtensionOf(encoder, fileExtension);
+    }
+
+    /**
+     * @return - the content addressed store writing share files into the share/ subdirectory of
+     * {@link #getDirectory()}, or of bottomsheethelper/ when none is set, exposed through
+     * {@link #getFileProvider()} and bounded by {@link #getShareCacheSize()} and {@link #getShareCacheMaxAge()}
+     */
+    public synchronized ShareFileStore getShareFileStore(){
+
+        if(shareFileStore == null){
+            shareFileStore = new ShareFileStore(context, directory, fileProvider, fileExtension,
+                    shareCacheSize, shareCacheMaxAge, backgroundExecutor);
+        }
+        return shareFileStore;
+    }
+
+    /**
+     * @return - the store if it was created already, null otherwise. Looking a Uri up never needs
+     * to create the store, which would start sweeping a directory the app may not use
+     */
+    synchronized ShareFileStore peekShareFileStore(){
+        return shareFileStore;
+    }
+
+    /**
+     * Records the target the user chose so it ranks higher the next time the sheet is loaded
+     * @param bottomSheetItem - the chosen target
+     */
+    void recordShareTarget(BottomSheetItem bottomSheetItem){
+        ShareTargetRepository.getInstance(context).recordShare(action, mimeType, bottomSheetItem,
+                backgroundExecutor, mainExecutor);
+    }
+
+    /**
+     * Shows items saved before the process was killed until the resolve completes, ignored when
+     * the resolve already delivered items. Partial snapshots do not replace them, the complete one does
+     * @param items - the saved items, their icons are loaded from the cache as they are bound
+     */
+    void restoreBottomSheetItems(List<BottomSheetItem> items){
+
+        if(bottomSheetItems.isEmpty() && !items.isEmpty()){
+            restoredItems = true;
+            bottomSheetItems = Collections.unmodifiableList(items);
+            showBottomSheetItems();
+        }
+    }
+
+    /**
+     * Takes over the store of the SheetHelper this one replaces across a configuration change, so
+     * the files it pinned stay protected from the sweep. Ignored once this SheetHelper has a store
+     * or when the store writes somewhere else
+     * @param store - the store of the previous SheetHelper
+     */
+    synchronized void adoptShareFileStore(ShareFileStore store){
+
+        if(shareFileStore == null && store.isFor(context, directory, fileProvider, fileExtension, shareCacheSize, shareCacheMaxAge)){
+            shareFileStore = store;
+        }
+    }
+
+    /**
+     * Stops all of this sheet's pending work and unregisters the payloads it streams which no
+     * target was handed, called when the owning screen is destroyed.
+     * A resolve shared with another sheet keeps running for that sheet
+     */
+    public void release(){
+        ShareTargetRepository.getInstance(context).removeListener(targetsListener);
+        adapter.cancelPendingUpdates();
+
+        synchronized (pipeUris){
+            for(Uri uri : pipeUris){
+                SharePipeProvider.unregister(uri);
+            }
+            pipeUris.clear();
+        }
+    }
+
     /**
      * Builder class for the SheetHelper
      */
@@ -248,6 +694,25 @@ public class SheetHelper {
         private int titleColor;
         private int itemTextColor;
         private int backgroundColor;
+        private boolean streaming;
+        private Executor backgroundExecutor;
+        private Executor iconExecutor;
+        private Executor encoderExecutor;
+        private Executor pipeExecutor;
+        private Executor mainExecutor;
+        private long shareFileTimeout = -1;
+        private boolean speculativeShareFile;
+        private long shareCacheSize = -1;
+        private long shareCacheMaxAge = -1;
+        private FileType fileType;
+        private int quality = -1;
+        private int maxDimension;
+        private boolean pipeShareFile;
+        private int minShareFiles;
+        private boolean inflateSheetWhenIdle;
+        private boolean prewarmItems;
+        private boolean flatCells;
+        private boolean searchable;
 
         public Builder with(Context context){
             this.context = context;
@@ -330,6 +795,215 @@ public class SheetHelper {
             return this;
         }
 
+        /**
+         * Shows targets in batches as they resolve, the sheet is usable before every app is labelled
+         * @param streaming - true to stream targets into the sheet
+         * @return - the Builder
+         */
+        public Builder streaming(boolean streaming){
+            this.streaming = streaming;
+            return this;
+        }
+
+        /**
+         * Sets the Executor used for all of the sheet's background work, defaults to {@link SheetExecutors#background()}.
+         * Icons, parallel encodes and share pipes also run on it unless they are given Executors of their own
+         * @param backgroundExecutor - the Executor
+         * @return - the Builder
+         */
+        public Builder executor(Executor backgroundExecutor){
+            this.backgroundExecutor = backgroundExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the Executor icons are loaded on as rows are bound, defaults to the Executor set with
+         * {@link #executor(Executor)}, or to a pool of the library so icons never wait behind a share file
+         * @param iconExecutor - the Executor
+         * @return - the Builder
+         */
+        public Builder iconExecutor(Executor iconExecutor){
+            this.iconExecutor = iconExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the Executor the items of a multiple share are encoded on in parallel, defaults to the
+         * Executor set with {@link #executor(Executor)}, or to a pool of the library with a thread per
+         * core. An encode the Executor has not started when it is needed runs on the waiting thread
+         * @param encoderExecutor - the Executor
+         * @return - the Builder
+         */
+        public Builder encoderExecutor(Executor encoderExecutor){
+            this.encoderExecutor = encoderExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the Executor writing share pipes with {@link #pipeShareFile(boolean)}, defaults to the
+         * Executor set with {@link #executor(Executor)}, or to a pool of the library. A writer holds
+         * its thread until the receiver has read the whole payload
+         * @param pipeExecutor - the Executor
+         * @return - the Builder
+         */
+        public Builder pipeExecutor(Executor pipeExecutor){
+            this.pipeExecutor = pipeExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the Executor results are delivered on, it must run on the main thread,
+         * defaults to {@link SheetExecutors#mainThread()}
+         * @param mainExecutor - the Executor
+         * @return - the Builder
+         */
+        public Builder mainExecutor(Executor mainExecutor){
+            this.mainExecutor = mainExecutor;
+            return this;
+        }
+
+        /**
+         * Sets how long the share file may go without reporting progress before the share is
+         * abandoned, defaults to 30 seconds. Every advance of the progress starts the timeout over,
+         * so copying a large file into the share directory, which reports progress as it goes, is
+         * only abandoned when the copy stalls
+         * @param shareFileTimeout - the timeout in milliseconds, 0 for no limit
+         * @return - the Builder
+         */
+        public Builder shareFileTimeout(long shareFileTimeout){
+            this.shareFileTimeout = shareFileTimeout;
+            return this;
+        }
+
+        /**
+         * Starts preparing the share file as soon as the sheet starts opening so it is ready when
+         * a target is chosen. If the sheet is hidden without a choice a file from the
+         * {@link ShareFileStore} is left for it to reuse or sweep, any other file is left where it was created
+         * @param speculativeShareFile - true to prepare the file speculatively
+         * @return - the Builder
+         */
+        public Builder speculativeShareFile(boolean speculativeShareFile){
+            this.speculativeShareFile = speculativeShareFile;
+            return this;
+        }
+
+        /**
+         * Sets the most bytes kept in the share directory, the least recently shared files are
+         * deleted in the background past it
+         * @param shareCacheSize - the size in bytes, 0 for no limit
+         * @return - the Builder
+         */
+        public Builder shareCacheSize(long shareCacheSize){
+            this.shareCacheSize = shareCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets how long a share file is kept after it was last shared
+         * @param shareCacheMaxAge - the age in milliseconds, 0 for no limit
+         * @return - the Builder
+         */
+        public Builder shareCacheMaxAge(long shareCacheMaxAge){
+            this.shareCacheMaxAge = shareCacheMaxAge;
+            return this;
+        }
+
+        /**
+         * Sets the kind of payload shared, defaults to {@link FileType#BITMAP}
+         * @param fileType - the FileType
+         * @return - the Builder
+         */
+        public Builder fileType(FileType fileType){
+            this.fileType = fileType;
+            return this;
+        }
+
+        /**
+         * Sets the quality JPEG and WEBP images are encoded with
+         * @param quality - the quality from 0 to 100
+         * @return - the Builder
+         */
+        public Builder quality(int quality){
+            this.quality = quality;
+            return this;
+        }
+
+        /**
+         * Scales shared images down before they are encoded so their longest side fits
+         * @param maxDimension - the longest side in pixels, 0 to keep the size
+         * @return - the Builder
+         */
+        public Builder maxDimension(int maxDimension){
+            this.maxDimension = maxDimension;
+            return this;
+        }
+
+        /**
+         * Streams payloads to the receiving app as it reads them instead of writing a file
+         * first, for receivers which read the stream front to back
+         * @param pipeShareFile - true to stream through {@link SharePipeProvider}
+         * @return - the Builder
+         */
+        public Builder pipeShareFile(boolean pipeShareFile){
+            this.pipeShareFile = pipeShareFile;
+            return this;
+        }
+
+        /**
+         * Lets a multiple share go ahead when some of its files fail to encode
+         * @param minShareFiles - the fewest files to share, 0 to require every file
+         * @return - the Builder
+         */
+        public Builder minShareFiles(int minShareFiles){
+            this.minShareFiles = minShareFiles;
+            return this;
+        }
+
+        /**
+         * Inflates the sheet once the Activity's first frame is drawn and the main thread is
+         * idle, so the first show does not pay for it. By default it is inflated on the first show
+         * @param inflateSheetWhenIdle - true to inflate the sheet when idle
+         * @return - the Builder
+         */
+        public Builder inflateSheetWhenIdle(boolean inflateSheetWhenIdle){
+            this.inflateSheetWhenIdle = inflateSheetWhenIdle;
+            return this;
+        }
+
+        /**
+         * Inflates a screenful of item views off the main thread as soon as the sheet is
+         * inflated, combine with {@link #inflateSheetWhenIdle(boolean)} so the first expand
+         * inflates nothing
+         * @param prewarmItems - true to prewarm the item views
+         * @return - the Builder
+         */
+        public Builder prewarmItems(boolean prewarmItems){
+            this.prewarmItems = prewarmItems;
+            return this;
+        }
+
+        /**
+         * Draws each cell with a single View instead of inflating bottom_sheet_item.xml, the
+         * label text layouts are computed off the main thread so binding and measuring are lookups
+         * @param flatCells - true to use flat cells
+         * @return - the Builder
+         */
+        public Builder flatCells(boolean flatCells){
+            this.flatCells = flatCells;
+            return this;
+        }
+
+        /**
+         * Shows a search field in the sheet header narrowing the targets by label or package
+         * name as the user types, meant for devices listing many targets
+         * @param searchable - true to show the search field
+         * @return - the Builder
+         */
+        public Builder searchable(boolean searchable){
+            this.searchable = searchable;
+            return this;
+        }
+
         public SheetHelper create(){
             return new SheetHelper(this);
         }
@@ -340,64 +1014,23 @@ public class SheetHelper {
      */
     private void initBottomSheet(){
 
-        /* Interrupt old task and set to null */
-        if(mResolveInfoTask != null){
-            mResolveInfoTask.cancel(true);
-            mResolveInfoTask = null;
-        }
-
-        mResolveInfoTask = new ResolveInfoTask();
-        mResolveInfoTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        /* Stop listening to an old load */
+        ShareTargetRepository repository = ShareTargetRepository.getInstance(context);
+        repository.removeListener(targetsListener);
+        repository.load(action, mimeType, backgroundExecutor, mainExecutor, targetsListener);
     }
 
-
     /**
-     * AsyncTask to get the ResolveInfo for Sharing
+     * Listener for the shared snapshot of targets from the {@link ShareTargetRepository}
      */
-    public class ResolveInfoTask extends AsyncTask<Void, Void, List<BottomSheetItem>> {
-
+    private final ShareTargetRepository.Listener targetsListener = new ShareTargetRepository.Listener() {
         @Override
-        protected List<BottomSheetItem> doInBackground(Void... params) {
-            if(!isCancelled()) {
-
-                Intent shareIntent = new Intent(Intent.ACTION_SEND, null);
-                shareIntent.setType(mimeType);
-                PackageManager packageManager = context.getPackageManager();
-                List<ResolveInfo> activities = packageManager.queryIntentActivities(shareIntent, 0);
-                if (activities != null) {
-                    bottomSheetItems.clear();
-
-                    for (ResolveInfo activity : activities) {
-
-                        if (Log.isLoggable(TAG, Log.DEBUG)) {
-                            Log.d(TAG, "can handle Intent.ACTION_SEND " + activity.loadLabel(packageManager).toString());
-                        }
-
-                        BottomSheetItem bottomSheetItem = new BottomSheetItem();
-                        bottomSheetItem.title = activity.loadLabel(packageManager).toString();
-                        bottomSheetItem.drawable = activity.loadIcon(packageManager);
-                        bottomSheetItem.className = activity.activityInfo.name;
-                        bottomSheetItem.packageName = activity.activityInfo.packageName;
-                        bottomSheetItems.add(bottomSheetItem);
-                    }
-
-                    Collections.sort(bottomSheetItems, new Comparator<BottomSheetItem>() {
-                        @Override
-                        public int compare(BottomSheetItem lhs, BottomSheetItem rhs) {
-                            return lhs.title.compareTo(rhs.title);
-                        }
-                    });
-                }
-                return bottomSheetItems;
+        public void onTargetsLoaded(List<BottomSheetItem> snapshot, boolean complete) {
+            if(complete || (streaming && !restoredItems)) {
+                restoredItems = false;
+                bottomSheetItems = snapshot;
+                showBottomSheetItems();
             }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(List<BottomSheetItem> bottomSheetItems) {
-            super.onPostExecute(bottomSheetItems);
-            adapter.notifyDataSetChanged();
         }
-    }
-
+    };
 }
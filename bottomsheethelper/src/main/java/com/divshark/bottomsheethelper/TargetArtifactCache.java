@@ -0,0 +1,609 @@
+package com.divshark.bottomsheethelper;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the label and rendered icon for each share target {@link ComponentName}.
+ *
+ * Labels and icons are cached separately so resolving the targets never touches an icon, icons
+ * are only loaded by the {@link IconLoader} when a row is bound. Each has an in memory LRU, the
+ * icon one bounded in bytes, in front of a compact on disk tier.
+ *
+ * The memory tiers are trusted until {@link #invalidate()}, which {@link PackageChangeReceiver}
+ * calls whenever a package changes, or until the Locale changes, so a hit costs no call to the
+ * PackageManager. Disk entries are stamped with the owning package's lastUpdateTime, versionCode
+ * and the Locale, so a label or icon is only reloaded from the other app's resources when that
+ * app actually changed. The stamps of all packages are listed at once and kept with the memory tiers.
+ * The disk tier holds one directory per package, directories of packages which are no longer
+ * installed are removed by {@link #sweep(PackageManager)}.
+ *
+ * Icons are rasterized once, off the main thread, into bitmaps exactly the size of the icon
+ * slot for the current density, so binding never scales or draws a launcher icon. Those
+ * bitmaps come from and return to an {@link IconBitmapPool}.
+ */
+final class TargetArtifactCache {
+
+    /**
+     * TAG for logging
+     */
+    private static final String TAG = TargetArtifactCache.class.getSimpleName();
+
+    /**
+     * Directory under {@link Context#getCacheDir()} holding the disk tier
+     */
+    private static final String DIRECTORY = "bottomsheethelper/artifacts";
+
+    /**
+     * Version of the on disk format, bump when it changes
+     */
+    private static final int DISK_VERSION = 2;
+
+    /**
+     * Number of labels kept in memory
+     */
+    private static final int MAX_LABELS = 512;
+
+    /**
+     * Number of evicted icon bitmaps kept around for reuse
+     */
+    private static final int MAX_POOLED_ICONS = 8;
+
+    private static TargetArtifactCache sInstance;
+
+    private final File directory;
+
+    private final LruCache<String, Stamped<String>> labelCache;
+
+    private final LruCache<String, Stamped<Bitmap>> iconCache;
+
+    private final IconBitmapPool iconPool;
+
+    /**
+     * The version part of the stamp of each installed package, listed in one call on the first
+     * disk tier access after {@link #invalidate()}
+     */
+    private final Map<String, String> packageStamps = new HashMap<>();
+
+    private boolean packageStampsListed;
+
+    /**
+     * Incremented by {@link #invalidate()} so a listing which was running is not kept
+     */
+    private int packageStampsGeneration;
+
+    /**
+     * The Locale the memory tiers were filled in
+     */
+    private Locale locale;
+
+    /**
+     * A cached value along with the stamp it was loaded for
+     */
+    private static final class Stamped<T> {
+
+        final String stamp;
+        final T value;
+
+        Stamped(String stamp, T value){
+            this.stamp = stamp;
+            this.value = value;
+        }
+    }
+
+    static synchronized TargetArtifactCache getInstance(Context context){
+
+        if(sInstance == null){
+            sInstance = new TargetArtifactCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private TargetArtifactCache(Context context){
+
+        directory = new File(context.getCacheDir(), DIRECTORY);
+
+        labelCache = new LruCache<>(MAX_LABELS);
+
+        iconPool = new IconBitmapPool(context.getResources().getDimensionPixelSize(R.dimen.bsh_icon_size), MAX_POOLED_ICONS);
+
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        iconCache = new LruCache<String, Stamped<Bitmap>>(maxBytes){
+            @Override
+            protected int sizeOf(String key, Stamped<Bitmap> value) {
+                return value.value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Stamped<Bitmap> oldValue, Stamped<Bitmap> newValue) {
+                if(oldValue.value != (newValue != null ? newValue.value : null)){
+                    iconPool.evicted(oldValue.value);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the label for a component, from memory when it was loaded since the last
+     * {@link #invalidate()}, otherwise loading it from the other app only when the disk copy was
+     * loaded for a different version of the package or a different Locale
+     * @param packageManager - the PackageManager
+     * @param component - the share target
+     * @param activityInfo - the ActivityInfo if already resolved, may be null
+     * @return - the label for the component
+     * @throws PackageManager.NameNotFoundException - if the component no longer exists
+     */
+    String getLabel(PackageManager packageManager, ComponentName component, ActivityInfo activityInfo)
+            throws PackageManager.NameNotFoundException {
+
+        String key = component.flattenToShortString();
+        checkLocale();
+
+        Stamped<String> label = labelCache.get(key);
+        if(label != null){
+            return label.value;
+        }
+
+        String stamp = stamp(packageManager, component);
+        File file = file(component, key, ".label");
+        DataInputStream in = openEntry(file, key, stamp);
+        if(in != null){
+            try {
+                label = new Stamped<>(stamp, in.readUTF());
+            } catch (IOException ex) {
+                logReadFailure(key, ex);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        if(label == null || !label.stamp.equals(stamp)){
+
+            if(activityInfo == null){
+                activityInfo = packageManager.getActivityInfo(component, 0);
+            }
+
+            label = new Stamped<>(stamp, activityInfo.loadLabel(packageManager).toString());
+
+            DataOutputStream out = createEntry(file, key, stamp);
+            if(out != null){
+                try {
+                    out.writeUTF(label.value);
+                    commitEntry(out, file);
+                } catch (IOException ex) {
+                    logWriteFailure(key, ex);
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        }
+
+        labelCache.put(key, label);
+        return label.value;
+    }
+
+    /**
+     * Returns the icon for a component if it is in the memory tier, safe to call on the main thread.
+     * A returned icon is pinned and must be handed back with {@link #releaseIcon(Bitmap)}
+     * @param component - the share target
+     * @return - the icon or null
+     */
+    Bitmap peekIcon(ComponentName component){
+        return peekIcon(component.flattenToShortString());
+    }
+
+    /**
+     * Same as {@link #peekIcon(ComponentName)} with the key already flattened, allocates nothing
+     * @param key - the flattened short string of the component
+     * @return - the pinned icon or null
+     */
+    Bitmap peekIcon(String key){
+
+        synchronized (iconPool) {
+            Stamped<Bitmap> icon = iconCache.get(key);
+            if(icon == null){
+                return null;
+            }
+            iconPool.acquire(icon.value);
+            return icon.value;
+        }
+    }
+
+    /**
+     * Returns the icon for a component, from memory when it was rendered since the last
+     * {@link #invalidate()}, otherwise rendering it from the other app only when the disk copy
+     * was rendered for a different version of the package or another slot size.
+     * The returned icon is pinned and must be handed back with {@link #releaseIcon(Bitmap)}
+     * @param packageManager - the PackageManager
+     * @param component - the share target
+     * @return - the rendered icon
+     * @throws PackageManager.NameNotFoundException - if the component no longer exists
+     */
+    Bitmap getIcon(PackageManager packageManager, ComponentName component)
+            throws PackageManager.NameNotFoundException {
+
+        String key = component.flattenToShortString();
+        checkLocale();
+
+        synchronized (iconPool) {
+            Stamped<Bitmap> icon = iconCache.get(key);
+            if(icon != null){
+                iconPool.acquire(icon.value);
+                return icon.value;
+            }
+        }
+
+        String stamp = stamp(packageManager, component) + ":" + iconPool.getSize();
+        Stamped<Bitmap> icon = null;
+        File file = file(component, key, ".icon");
+        DataInputStream in = openEntry(file, key, stamp);
+        if(in != null){
+            try {
+                Bitmap bitmap = decode(in);
+                if(bitmap != null){
+                    icon = new Stamped<>(stamp, bitmap);
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        if(icon == null){
+
+            if(Log.isLoggable(TAG, Log.DEBUG)){
+                Log.d(TAG, "rasterizing icon for " + key);
+            }
+
+            icon = new Stamped<>(stamp, rasterize(packageManager.getActivityIcon(component)));
+
+            DataOutputStream out = createEntry(file, key, stamp);
+            if(out != null){
+                try {
+                    icon.value.compress(Bitmap.CompressFormat.PNG, 100, out);
+                    commitEntry(out, file);
+                } catch (IOException ex) {
+                    logWriteFailure(key, ex);
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        }
+
+        synchronized (iconPool) {
+            iconPool.acquire(icon.value);
+            iconCache.put(key, icon);
+        }
+        return icon.value;
+    }
+
+    /**
+     * Releases the pin taken by {@link #peekIcon(ComponentName)} or {@link #getIcon(PackageManager, ComponentName)}
+     * @param icon - the icon which is no longer displayed
+     */
+    void releaseIcon(Bitmap icon){
+        iconPool.release(icon);
+    }
+
+    /**
+     * Drops the memory tiers and the package stamps, the disk tier is revalidated against the
+     * package stamp on read
+     */
+    void invalidate(){
+        synchronized (packageStamps){
+            packageStamps.clear();
+            packageStampsListed = false;
+            packageStampsGeneration++;
+        }
+        labelCache.evictAll();
+        iconCache.evictAll();
+    }
+
+    /**
+     * Removes the disk entries of packages which are no longer installed, along with any file
+     * left by an older layout of the disk tier. Call it off the main thread.
+     * @param packageManager - the PackageManager
+     */
+    void sweep(PackageManager packageManager){
+
+        File[] files = directory.listFiles();
+        if(files == null){
+            return;
+        }
+
+        Set<String> installed = listPackageStamps(packageManager).keySet();
+
+        for(File file : files){
+            if(!file.isDirectory() || !installed.contains(file.getName())){
+
+                if(Log.isLoggable(TAG, Log.DEBUG)){
+                    Log.d(TAG, "removing cached artifacts " + file.getName());
+                }
+                delete(file);
+            }
+        }
+    }
+
+    private static void delete(File file){
+
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        if(!file.delete() && file.exists() && Log.isLoggable(TAG, Log.WARN)){
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    /**
+     * Drops the memory tiers when the Locale changed since they were filled
+     */
+    private synchronized void checkLocale(){
+
+        Locale current = Locale.getDefault();
+        if(!current.equals(locale)){
+            if(locale != null){
+                labelCache.evictAll();
+                iconCache.evictAll();
+            }
+            locale = current;
+        }
+    }
+
+    private String stamp(PackageManager packageManager, ComponentName component)
+            throws PackageManager.NameNotFoundException {
+
+        String packageName = component.getPackageName();
+        String packageStamp;
+        boolean listed;
+        int generation;
+        synchronized (packageStamps){
+            listed = packageStampsListed;
+            generation = packageStampsGeneration;
+            packageStamp = packageStamps.get(packageName);
+        }
+        if(!listed){
+            packageStamp = listPackageStamps(packageManager).get(packageName);
+        }
+
+        if(packageStamp == null){
+
+            // Installed since the packages were listed
+            packageStamp = stamp(packageManager.getPackageInfo(packageName, 0));
+            synchronized (packageStamps){
+                if(generation == packageStampsGeneration){
+                    packageStamps.put(packageName, packageStamp);
+                }
+            }
+        }
+        return packageStamp + ":" + Locale.getDefault();
+    }
+
+    /**
+     * Lists the installed packages in a single call to the PackageManager and keeps their stamps
+     * @param packageManager - the PackageManager
+     * @return - the stamps by package name
+     */
+    private Map<String, String> listPackageStamps(PackageManager packageManager){
+
+        int generation;
+        synchronized (packageStamps){
+            generation = packageStampsGeneration;
+        }
+
+        Map<String, String> stamps = new HashMap<>();
+        for(PackageInfo packageInfo : packageManager.getInstalledPackages(0)){
+            stamps.put(packageInfo.packageName, stamp(packageInfo));
+        }
+
+        // A package changed while listing, the next lookup lists again
+        synchronized (packageStamps){
+            if(generation == packageStampsGeneration){
+                packageStamps.clear();
+                packageStamps.putAll(stamps);
+                packageStampsListed = true;
+            }
+        }
+        return stamps;
+    }
+
+    private static String stamp(PackageInfo packageInfo){
+        return packageInfo.lastUpdateTime + ":" + packageInfo.versionCode;
+    }
+
+    /**
+     * Draws the Drawable into a pooled slot sized Bitmap, keeping its aspect ratio
+     * @param drawable - the icon Drawable
+     * @return - the rasterized Bitmap
+     */
+    private Bitmap rasterize(Drawable drawable){
+
+        int size = iconPool.getSize();
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+
+        int left = 0;
+        int top = 0;
+        int right = size;
+        int bottom = size;
+        if(width > 0 && height > 0 && width != height){
+            if(width > height){
+                int scaledHeight = size * height / width;
+                top = (size - scaledHeight) / 2;
+                bottom = top + scaledHeight;
+            }else{
+                int scaledWidth = size * width / height;
+                left = (size - scaledWidth) / 2;
+                right = left + scaledWidth;
+            }
+        }
+
+        if(drawable instanceof BitmapDrawable){
+            ((BitmapDrawable) drawable).setFilterBitmap(true);
+        }
+
+        Bitmap bitmap = iconPool.get();
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(left, top, right, bottom);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a slot sized icon from the disk tier into a pooled bitmap
+     * @param in - the entry stream positioned after the header
+     * @return - the decoded Bitmap or null
+     */
+    private Bitmap decode(InputStream in){
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = iconPool.get();
+
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IllegalArgumentException ex) {
+
+            // The entry did not match the pooled bitmap, treat it as stale and rasterize again
+            iconPool.put(options.inBitmap);
+            return null;
+        }
+    }
+
+    private File file(ComponentName component, String key, String suffix){
+        return new File(new File(directory, component.getPackageName()), Integer.toHexString(key.hashCode()) + suffix);
+    }
+
+    /**
+     * Opens a disk entry positioned after its header
+     * @param file - the entry file
+     * @param key - the component key
+     * @param stamp - the current package stamp
+     * @return - the stream, or null when the entry is missing, for another key or stale
+     */
+    private static DataInputStream openEntry(File file, String key, String stamp){
+
+        if(!file.exists()){
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if(in.readInt() == DISK_VERSION && key.equals(in.readUTF()) && stamp.equals(in.readUTF())){
+                DataInputStream entry = in;
+                in = null;
+                return entry;
+            }
+
+        } catch (IOException ex) {
+            logReadFailure(key, ex);
+        } finally {
+            closeQuietly(in);
+        }
+        return null;
+    }
+
+    /**
+     * Starts writing a disk entry to a temporary file so readers never see a partial entry
+     * @param file - the entry file
+     * @param key - the component key
+     * @param stamp - the current package stamp
+     * @return - the stream positioned after the header, or null if it could not be created
+     */
+    private DataOutputStream createEntry(File file, String key, String stamp){
+
+        File parent = file.getParentFile();
+        if(!parent.mkdirs() && !parent.exists()){
+            return null;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile(file))));
+            out.writeInt(DISK_VERSION);
+            out.writeUTF(key);
+            out.writeUTF(stamp);
+            DataOutputStream entry = out;
+            out = null;
+            return entry;
+
+        } catch (IOException ex) {
+            logWriteFailure(key, ex);
+            return null;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Closes the stream and moves the finished entry into place
+     * @param out - the stream from {@link #createEntry(File, String, String)}
+     * @param file - the entry file
+     * @throws IOException - if the entry could not be written
+     */
+    private static void commitEntry(DataOutputStream out, File file) throws IOException {
+
+        out.close();
+        if(!tempFile(file).renameTo(file)){
+            throw new IOException("Unable to move " + file.getName() + " into place");
+        }
+    }
+
+    private static File tempFile(File file){
+        return new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    private static void logReadFailure(String key, IOException ex){
+
+        if(Log.isLoggable(TAG, Log.WARN)){
+            Log.w(TAG, "Failed to read cached artifact for " + key, ex);
+        }
+    }
+
+    private static void logWriteFailure(String key, IOException ex){
+
+        if(Log.isLoggable(TAG, Log.WARN)){
+            Log.w(TAG, "Failed to cache artifact for " + key, ex);
+        }
+    }
+
+    static void closeQuietly(Closeable closeable){
+
+        if(closeable != null){
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.divshark.bottomsheethelper;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+/**
+ * As you type filter over the targets of a snapshot, publishing the matches through a
+ * {@link Callback}, the sheet hands them to the {@link BottomSheetAdapter} which diffs them
+ * against what it shows.
+ *
+ * A target matches when every word of the query is a prefix of a word of its label or of a
+ * segment of its package name, ignoring case and accents. For each snapshot an {@link Index} of
+ * those words, sorted for prefix lookups, is built once on the background Executor. A query
+ * extending the previous one only narrows the previous matches, any other query starts from the
+ * index, so a keystroke costs a binary search or a scan of the current matches on the main thread.
+ *
+ * All methods must be called on the main thread.
+ */
+final class TargetFilter {
+
+    /**
+     * Splits labels, package names and queries into words
+     */
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * Combining marks left by decomposing accented letters
+     */
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private static final String[] NO_WORDS = new String[0];
+
+    /**
+     * Receives the targets to show
+     */
+    interface Callback {
+
+        /**
+         * @param items - the immutable matches, in the order of the snapshot
+         */
+        void onFiltered(List<BottomSheetItem> items);
+    }
+
+    private final Callback callback;
+
+    private final Executor backgroundExecutor;
+
+    private final Executor mainExecutor;
+
+    /**
+     * The unfiltered snapshot
+     */
+    private List<BottomSheetItem> items = Collections.emptyList();
+
+    /**
+     * The index of {@link #items}, null while it is built
+     */
+    private Index index;
+
+    /**
+     * Incremented for each snapshot so an index built for an older one is dropped
+     */
+    private int generation;
+
+    /**
+     * The normalized query and its words
+     */
+    private String query = "";
+    private String[] queryWords = NO_WORDS;
+
+    /**
+     * Positions in {@link #items} matching {@link #query}, null when everything matches
+     */
+    private int[] matches;
+    private int matchCount;
+
+    /**
+     * @param callback - receives the matches on the main thread
+     * @param backgroundExecutor - builds the index of each snapshot
+     * @param mainExecutor - the main thread
+     */
+    TargetFilter(Callback callback, Executor backgroundExecutor, Executor mainExecutor){
+        this.callback = callback;
+        this.backgroundExecutor = backgroundExecutor;
+        this.mainExecutor = mainExecutor;
+    }
+
+    /**
+     * Filters a new snapshot with the current query, its index is built in the background
+     * @param items - the immutable snapshot
+     */
+    void setItems(final List<BottomSheetItem> items){
+
+        this.items = items;
+        this.index = null;
+        this.matches = null;
+        this.matchCount = 0;
+        final int generation = ++this.generation;
+
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                final Index index = new Index(items);
+                mainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation == TargetFilter.this.generation){
+                            TargetFilter.this.index = index;
+                            filterFromIndex();
+                            publish();
+                        }
+                    }
+                });
+            }
+        });
+
+        if(queryWords.length == 0){
+            publish();
+        }
+        // Otherwise the previous matches stay up until the index can filter the new snapshot
+    }
+
+    /**
+     * Filters the snapshot with the text typed so far
+     * @param text - the query, empty to show every target
+     */
+    void setQuery(CharSequence text){
+
+        String query = normalize(text.toString());
+        if(query.equals(this.query)){
+            return;
+        }
+
+        boolean narrows = query.startsWith(this.query) && matches != null;
+        this.query = query;
+        this.queryWords = split(query);
+
+        if(index == null){
+            // Filtered as soon as the index of the snapshot is ready
+            return;
+        }
+
+        if(narrows){
+            narrow();
+        }else{
+            filterFromIndex();
+        }
+        publish();
+    }
+
+    /**
+     * Looks the first word up in the index and checks the others on each candidate
+     */
+    private void filterFromIndex(){
+
+        if(queryWords.length == 0){
+            matches = null;
+            matchCount = 0;
+            return;
+        }
+
+        matches = index.lookup(queryWords[0]);
+        matchCount = matches.length;
+        narrow();
+    }
+
+    /**
+     * Drops the matches which do not match every word of the query, keeping their order
+     */
+    private void narrow(){
+
+        int kept = 0;
+        for(int i = 0; i < matchCount; i++){
+            if(index.matches(matches[i], queryWords)){
+                matches[kept++] = matches[i];
+            }
+        }
+        matchCount = kept;
+    }
+
+    private void publish(){
+
+        if(matches == null){
+            callback.onFiltered(items);
+            return;
+        }
+
+        List<BottomSheetItem> filtered = new ArrayList<>(matchCount);
+        for(int i = 0; i < matchCount; i++){
+            filtered.add(items.get(matches[i]));
+        }
+        callback.onFiltered(Collections.unmodifiableList(filtered));
+    }
+
+    /**
+     * Lower cases the text and strips accents so typing a plain letter finds its accented forms
+     */
+    private static String normalize(String text){
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.getDefault()).trim();
+    }
+
+    private static String[] split(String normalized){
+        return normalized.isEmpty() ? NO_WORDS : SEPARATORS.split(normalized);
+    }
+
+    /**
+     * Immutable word index of one snapshot
+     */
+    private static final class Index {
+
+        /**
+         * Every word of every target, sorted, with the position of its target alongside
+         */
+        private final String[] words;
+        private final int[] positions;
+
+        /**
+         * The words of each target, for checking the rest of a query
+         */
+        private final String[][] targetWords;
+
+        Index(List<BottomSheetItem> items){
+
+            targetWords = new String[items.size()][];
+            int count = 0;
+            for(int i = 0; i < items.size(); i++){
+                BottomSheetItem bottomSheetItem = items.get(i);
+                String text = (bottomSheetItem.title != null ? bottomSheetItem.title : "") + ' ' + bottomSheetItem.packageName;
+                targetWords[i] = distinct(split(normalize(text)));
+                count += targetWords[i].length;
+            }
+
+            Entry[] entries = new Entry[count];
+            int n = 0;
+            for(int i = 0; i < targetWords.length; i++){
+                for(String word : targetWords[i]){
+                    entries[n++] = new Entry(word, i);
+                }
+            }
+            Arrays.sort(entries);
+
+            words = new String[count];
+            positions = new int[count];
+            for(int i = 0; i < count; i++){
+                words[i] = entries[i].word;
+                positions[i] = entries[i].position;
+            }
+        }
+
+        /**
+         * @param prefix - a normalized query word
+         * @return - the sorted positions of the targets with a word starting with the prefix
+         */
+        int[] lookup(String prefix){
+
+            // The first word not before the prefix, Arrays.binarySearch may land anywhere in a run
+            // of equal words which several targets share
+            int from = 0;
+            int to = words.length;
+            while(from < to){
+                int middle = (from + to) >>> 1;
+                if(words[middle].compareTo(prefix) < 0){
+                    from = middle + 1;
+                }else{
+                    to = middle;
+                }
+            }
+
+            // Words sharing the prefix are adjacent, a target is marked once however many match
+            boolean[] found = new boolean[targetWords.length];
+            int count = 0;
+            for(int i = from; i < words.length && words[i].startsWith(prefix); i++){
+                if(!found[positions[i]]){
+                    found[positions[i]] = true;
+                    count++;
+                }
+            }
+
+            int[] result = new int[count];
+            int n = 0;
+            for(int position = 0; n < count; position++){
+                if(found[position]){
+                    result[n++] = position;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return - true if each query word is a prefix of one of the target's words
+         */
+        boolean matches(int position, String[] queryWords){
+
+            for(String queryWord : queryWords){
+                boolean matched = false;
+                for(String word : targetWords[position]){
+                    if(word.startsWith(queryWord)){
+                        matched = true;
+                        break;
+                    }
+                }
+                if(!matched){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String[] distinct(String[] words){
+
+            List<String> distinct = new ArrayList<>(words.length);
+            for(String word : words){
+                if(!word.isEmpty() && !distinct.contains(word)){
+                    distinct.add(word);
+                }
+            }
+            return distinct.toArray(new String[distinct.size()]);
+        }
+    }
+
+    /**
+     * A word and the position of its target, sorted by word
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        final String word;
+        final int position;
+
+        Entry(String word, int position){
+            this.word = word;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Entry another) {
+            return word.compareTo(another.word);
+        }
+    }
+}
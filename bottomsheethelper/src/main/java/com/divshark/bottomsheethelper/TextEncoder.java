@@ -0,0 +1,37 @@
+package com.divshark.bottomsheethelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Encodes {@link FileType#TEXT} payloads as UTF-8
+ */
+public final class TextEncoder implements ShareEncoder<CharSequence> {
+
+    @Override
+    public FileType getFileType() {
+        return FileType.TEXT;
+    }
+
+    @Override
+    public String getContentKey(CharSequence text) {
+        return Digests.sha1Hex(text) + ":utf-8";
+    }
+
+    @Override
+    public long estimateMemory(CharSequence text) {
+        // The UTF-8 bytes take up to 3 bytes a char
+        return text.length() * 3L;
+    }
+
+    @Override
+    public void encode(CharSequence text, OutputStream out) throws IOException {
+
+        // Not closed, the store owns the stream
+        Writer writer = new OutputStreamWriter(out, Digests.UTF_8);
+        writer.append(text);
+        writer.flush();
+    }
+}
@@ -0,0 +1,53 @@
+package com.divshark.bottomsheethelper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the state behind the {@link ShadowScrollListener} only asks for an animation on real
+ * changes. Allocations of the listener's scroll events are measured on a device by
+ * BottomSheetAdapterAllocationTest.
+ */
+public class ScrollShadowStateTest {
+
+    @Test
+    public void showsOnceWhileScrollingDown() throws Exception {
+        ScrollShadowState state = new ScrollShadowState();
+
+        assertEquals(ScrollShadowState.SHOW, state.onScrolled(10, false));
+        for(int i = 0; i < 100; i++){
+            assertEquals(ScrollShadowState.NONE, state.onScrolled(10, false));
+            assertEquals(ScrollShadowState.NONE, state.onScrolled(-10, false));
+        }
+        assertTrue(state.isShown());
+    }
+
+    @Test
+    public void hidesOnceAtTop() throws Exception {
+        ScrollShadowState state = new ScrollShadowState();
+
+        // Nothing to hide before the shadow was ever shown
+        assertEquals(ScrollShadowState.NONE, state.onScrolled(-10, true));
+
+        state.onScrolled(10, false);
+        assertEquals(ScrollShadowState.HIDE, state.onScrolled(-10, true));
+        assertEquals(ScrollShadowState.NONE, state.onScrolled(-10, true));
+        assertTrue(state.onHideEnd());
+        assertFalse(state.onHideEnd());
+        assertEquals(ScrollShadowState.NONE, state.onScrolled(-10, true));
+    }
+
+    @Test
+    public void showAgainWhileHidingKeepsShadow() throws Exception {
+        ScrollShadowState state = new ScrollShadowState();
+
+        state.onScrolled(10, false);
+        state.onScrolled(-10, true);
+        assertEquals(ScrollShadowState.SHOW, state.onScrolled(10, false));
+
+        // The cancelled hide animation must not make the shadow invisible
+        assertFalse(state.onHideEnd());
+        assertTrue(state.isShown());
+    }
+}
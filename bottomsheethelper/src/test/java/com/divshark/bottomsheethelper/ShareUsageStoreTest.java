@@ -0,0 +1,187 @@
+package com.divshark.bottomsheethelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the frecency table of {@link ShareUsageStore}: colliding pairs probe for a slot, the
+ * least used pair is evicted when every probed slot is taken, counts halve every half life, and
+ * the table survives being read back from its file.
+ */
+public class ShareUsageStoreTest {
+
+    private static final String MIME_TYPE = "image/*";
+
+    private static final long NOW = 1475000000000L;
+
+    private static final double DELTA = 1e-9;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("usage", null);
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void unknownTargetScoresZero() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+
+        assertEquals(0d, store.score(MIME_TYPE, "com.example/.Share", NOW), DELTA);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void recordsPerMimeType() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+
+        store.record(MIME_TYPE, "com.example/.Share", NOW);
+        store.record(MIME_TYPE, "com.example/.Share", NOW);
+
+        assertEquals(2d, store.score(MIME_TYPE, "com.example/.Share", NOW), DELTA);
+        assertEquals(0d, store.score("text/plain", "com.example/.Share", NOW), DELTA);
+    }
+
+    @Test
+    public void collidingTargetsProbeForFreeSlots() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+        List<String> targets = collidingTargets(ShareUsageStore.MAX_PROBES);
+
+        for(int i = 0; i < targets.size(); i++){
+            for(int n = 0; n <= i; n++){
+                store.record(MIME_TYPE, targets.get(i), NOW);
+            }
+        }
+
+        // Every pair kept its own count although they all start probing at the same slot
+        for(int i = 0; i < targets.size(); i++){
+            assertEquals(i + 1d, store.score(MIME_TYPE, targets.get(i), NOW), DELTA);
+        }
+    }
+
+    @Test
+    public void evictsLeastUsedWhenProbesAreFull() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+        List<String> targets = collidingTargets(ShareUsageStore.MAX_PROBES + 1);
+        String leastUsed = targets.get(5);
+        String newcomer = targets.get(ShareUsageStore.MAX_PROBES);
+
+        for(int i = 0; i < ShareUsageStore.MAX_PROBES; i++){
+            store.record(MIME_TYPE, targets.get(i), NOW);
+            if(!targets.get(i).equals(leastUsed)){
+                store.record(MIME_TYPE, targets.get(i), NOW);
+            }
+        }
+
+        store.record(MIME_TYPE, newcomer, NOW);
+
+        assertEquals(1d, store.score(MIME_TYPE, newcomer, NOW), DELTA);
+        assertEquals(0d, store.score(MIME_TYPE, leastUsed, NOW), DELTA);
+        for(int i = 0; i < ShareUsageStore.MAX_PROBES; i++){
+            if(!targets.get(i).equals(leastUsed)){
+                assertEquals(2d, store.score(MIME_TYPE, targets.get(i), NOW), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void evictionWeighsDecayedCounts() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+        List<String> targets = collidingTargets(ShareUsageStore.MAX_PROBES + 1);
+        String stale = targets.get(2);
+        long later = NOW + 4 * ShareUsageStore.HALF_LIFE_MILLIS;
+
+        // Used most but long ago, it decays below the targets used once recently
+        for(int n = 0; n < 8; n++){
+            store.record(MIME_TYPE, stale, NOW);
+        }
+        for(int i = 0; i < ShareUsageStore.MAX_PROBES; i++){
+            if(!targets.get(i).equals(stale)){
+                store.record(MIME_TYPE, targets.get(i), later);
+            }
+        }
+
+        store.record(MIME_TYPE, targets.get(ShareUsageStore.MAX_PROBES), later);
+
+        assertEquals(0d, store.score(MIME_TYPE, stale, later), DELTA);
+        assertEquals(1d, store.score(MIME_TYPE, targets.get(ShareUsageStore.MAX_PROBES), later), DELTA);
+    }
+
+    @Test
+    public void countsHalveEveryHalfLife() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+        String target = "com.example/.Share";
+
+        store.record(MIME_TYPE, target, NOW);
+        assertEquals(0.5d, store.score(MIME_TYPE, target, NOW + ShareUsageStore.HALF_LIFE_MILLIS), DELTA);
+
+        // A new use adds to the decayed count
+        store.record(MIME_TYPE, target, NOW + ShareUsageStore.HALF_LIFE_MILLIS);
+        assertEquals(1.5d, store.score(MIME_TYPE, target, NOW + ShareUsageStore.HALF_LIFE_MILLIS), DELTA);
+        assertEquals(0.75d, store.score(MIME_TYPE, target, NOW + 2 * ShareUsageStore.HALF_LIFE_MILLIS), DELTA);
+    }
+
+    @Test
+    public void clockGoingBackwardsDoesNotInflate() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+
+        store.record(MIME_TYPE, "com.example/.Share", NOW);
+
+        assertEquals(1d, store.score(MIME_TYPE, "com.example/.Share", NOW - ShareUsageStore.HALF_LIFE_MILLIS), DELTA);
+    }
+
+    @Test
+    public void readsBackWhatWasRecorded() throws Exception {
+        ShareUsageStore store = new ShareUsageStore(file);
+        store.record(MIME_TYPE, "com.example/.Share", NOW);
+        store.record(MIME_TYPE, "com.example/.Send", NOW);
+
+        // The second record only rewrote its own record
+        ShareUsageStore reloaded = new ShareUsageStore(file);
+        assertEquals(1d, reloaded.score(MIME_TYPE, "com.example/.Share", NOW), DELTA);
+        assertEquals(1d, reloaded.score(MIME_TYPE, "com.example/.Send", NOW), DELTA);
+    }
+
+    @Test
+    public void ignoresForeignFile() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{ 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        out.close();
+
+        ShareUsageStore store = new ShareUsageStore(file);
+        assertEquals(0d, store.score(MIME_TYPE, "com.example/.Share", NOW), DELTA);
+
+        store.record(MIME_TYPE, "com.example/.Share", NOW);
+        assertEquals(1d, new ShareUsageStore(file).score(MIME_TYPE, "com.example/.Share", NOW), DELTA);
+    }
+
+    /**
+     * @return - distinct component keys which all start probing at the same slot
+     */
+    private static List<String> collidingTargets(int count){
+
+        List<String> targets = new ArrayList<>(count);
+        int slot = ShareUsageStore.homeSlot(MIME_TYPE, "com.example/.Target0");
+        for(int n = 0; targets.size() < count; n++){
+            String target = "com.example/.Target" + n;
+            if(ShareUsageStore.homeSlot(MIME_TYPE, target) == slot){
+                targets.add(target);
+            }
+        }
+        return targets;
+    }
+}
@@ -0,0 +1,250 @@
+package com.divshark.bottomsheethelper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which targets {@link TargetFilter} publishes as a query is typed: words match as
+ * prefixes in any order, accents and case are ignored, and a snapshot replaced while its index
+ * is built is filtered with the query typed meanwhile.
+ */
+public class TargetFilterTest {
+
+    private static final Executor MAIN_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<List<BottomSheetItem>> published = new ArrayList<>();
+
+    private final QueuedExecutor backgroundExecutor = new QueuedExecutor();
+
+    private TargetFilter targetFilter;
+
+    private List<BottomSheetItem> snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        targetFilter = new TargetFilter(new TargetFilter.Callback() {
+            @Override
+            public void onFiltered(List<BottomSheetItem> items) {
+                published.add(items);
+            }
+        }, backgroundExecutor, MAIN_EXECUTOR);
+
+        snapshot = Arrays.asList(
+                item("Gmail", "com.google.android.gm"),
+                item("Google Drive", "com.google.android.apps.docs"),
+                item("Messages", "com.android.mms"),
+                item("Café Bazaar", "com.farsitel.bazaar"),
+                item("WhatsApp", "com.whatsapp"));
+    }
+
+    @Test
+    public void emptyQueryShowsTheSnapshot() throws Exception {
+        targetFilter.setItems(snapshot);
+        backgroundExecutor.runAll();
+
+        assertSame(snapshot, last());
+
+        targetFilter.setQuery("dri");
+        targetFilter.setQuery("  ");
+        assertSame(snapshot, last());
+    }
+
+    @Test
+    public void matchesPrefixesOfLabelAndPackageWords() throws Exception {
+        indexSnapshot();
+
+        targetFilter.setQuery("dri");
+        assertTitles("Google Drive");
+
+        // Gmail only has google in its package name
+        targetFilter.setQuery("go");
+        assertTitles("Gmail", "Google Drive");
+
+        targetFilter.setQuery("mms");
+        assertTitles("Messages");
+
+        targetFilter.setQuery("app");
+        assertTitles("Google Drive");
+    }
+
+    @Test
+    public void doesNotMatchInsideWords() throws Exception {
+        indexSnapshot();
+
+        targetFilter.setQuery("rive");
+        assertTitles();
+
+        targetFilter.setQuery("sapp");
+        assertTitles();
+    }
+
+    @Test
+    public void ignoresCase() throws Exception {
+        indexSnapshot();
+
+        targetFilter.setQuery("WHATS");
+        assertTitles("WhatsApp");
+    }
+
+    @Test
+    public void everyWordMustMatchInAnyOrder() throws Exception {
+        indexSnapshot();
+
+        targetFilter.setQuery("google dr");
+        assertTitles("Google Drive");
+
+        targetFilter.setQuery("dr google");
+        assertTitles("Google Drive");
+
+        targetFilter.setQuery("google mes");
+        assertTitles();
+
+        // Separators other than spaces split the query too
+        targetFilter.setQuery("com.android");
+        assertTitles("Gmail", "Google Drive", "Messages");
+    }
+
+    @Test
+    public void typingNarrowsAndDeletingWidens() throws Exception {
+        indexSnapshot();
+
+        String query = "google d";
+        for(int i = 1; i <= query.length(); i++){
+            targetFilter.setQuery(query.substring(0, i));
+        }
+        assertTitles("Google Drive");
+
+        targetFilter.setQuery("google");
+        assertTitles("Gmail", "Google Drive");
+
+        targetFilter.setQuery("");
+        assertSame(snapshot, last());
+    }
+
+    @Test
+    public void plainLettersFindAccentedLabels() throws Exception {
+        indexSnapshot();
+
+        targetFilter.setQuery("cafe");
+        assertTitles("Café Bazaar");
+    }
+
+    @Test
+    public void accentedQueriesFindPlainLabels() throws Exception {
+        targetFilter.setItems(Arrays.asList(item("Cafe", "com.example.cafe"), item("Camera", "com.example.camera")));
+        backgroundExecutor.runAll();
+
+        targetFilter.setQuery("CAFÉ");
+        assertTitles("Cafe");
+    }
+
+    @Test
+    public void queryTypedBeforeTheIndexIsReadyIsApplied() throws Exception {
+        targetFilter.setItems(snapshot);
+        assertSame(snapshot, last());
+
+        targetFilter.setQuery("wh");
+        assertSame(snapshot, last());
+
+        backgroundExecutor.runAll();
+        assertTitles("WhatsApp");
+    }
+
+    @Test
+    public void replacedSnapshotIsFilteredWithTheQueryTypedMeanwhile() throws Exception {
+        indexSnapshot();
+        targetFilter.setQuery("g");
+        assertTitles("Gmail", "Google Drive");
+
+        List<BottomSheetItem> replacement = new ArrayList<>(snapshot);
+        replacement.add(item("Google Photos", "com.google.android.apps.photos"));
+
+        // The previous matches stay up while the new index is built, whatever is typed
+        int count = published.size();
+        targetFilter.setItems(replacement);
+        targetFilter.setQuery("goo");
+        targetFilter.setQuery("goo ph");
+        assertEquals(count, published.size());
+
+        backgroundExecutor.runAll();
+        assertTitles("Google Photos");
+        assertSame(replacement.get(replacement.size() - 1), last().get(0));
+    }
+
+    @Test
+    public void indexOfAReplacedSnapshotIsDropped() throws Exception {
+        List<BottomSheetItem> first = Arrays.asList(item("Gmail", "com.google.android.gm"));
+        List<BottomSheetItem> second = Arrays.asList(item("Google Drive", "com.google.android.apps.docs"));
+
+        targetFilter.setQuery("g");
+        targetFilter.setItems(first);
+        targetFilter.setItems(second);
+        int count = published.size();
+
+        // Both indexes are built, only the one of the current snapshot is published
+        backgroundExecutor.runAll();
+        assertEquals(count + 1, published.size());
+        assertTitles("Google Drive");
+
+        targetFilter.setQuery("gm");
+        assertTitles();
+    }
+
+    private void indexSnapshot(){
+        targetFilter.setItems(snapshot);
+        backgroundExecutor.runAll();
+    }
+
+    private List<BottomSheetItem> last(){
+        assertFalse("nothing published", published.isEmpty());
+        return published.get(published.size() - 1);
+    }
+
+    private void assertTitles(String... titles){
+
+        List<String> actual = new ArrayList<>();
+        for(BottomSheetItem bottomSheetItem : last()){
+            actual.add(bottomSheetItem.title);
+        }
+        assertEquals(Arrays.asList(titles), actual);
+    }
+
+    private static BottomSheetItem item(String title, String packageName){
+        BottomSheetItem bottomSheetItem = new BottomSheetItem();
+        bottomSheetItem.title = title;
+        bottomSheetItem.packageName = packageName;
+        bottomSheetItem.className = packageName + ".ShareActivity";
+        return bottomSheetItem;
+    }
+
+    /**
+     * Holds the background work until the test runs it, as a busy background thread would
+     */
+    private static final class QueuedExecutor implements Executor {
+
+        private final List<Runnable> queue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll(){
+            while(!queue.isEmpty()){
+                queue.remove(0).run();
+            }
+        }
+    }
+}